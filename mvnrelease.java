@@ -1,15 +1,84 @@
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
+package cz.foghcz.mvnrelease;
 
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.tools.ToolProvider;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * MvnRelease is a utility script for managing Maven project releases and development versions.
@@ -31,11 +100,21 @@ public class mvnrelease {
         COMMAND_MVN("mvn" + (System.getProperty("os.name").startsWith("Windows") ? ".cmd" : "")),
         COMMAND_MVN_ADDITIONAL_PARAMS(""), // additional parameters for mvn command, e.g. memory settings, it's parsed by spaces, do not use "" strings
         COMMAND_GIT("git"),
+        VERSION_UPDATE_ENGINE("builtin"), // "builtin" rewrites pom files in-process, "maven" runs versions-maven-plugin
+        MAVEN_JVM_PROFILE("-XX:TieredStopAtLevel=1 -Xshare:auto -Xmx512m -XX:+UseSerialGC"), // JVM options for short maven goals, they don't replace options set in .mvn/jvm.config or MAVEN_OPTS
+        VERSIONS_PLUGIN("org.codehaus.mojo:versions-maven-plugin:2.16.2"), // pinned plugin, maven runs offline once it's in the local repository, see prewarm operation
+        MAVEN_ADDITIONAL_GOALS(""), // goals run after the version update, e.g. "validate enforcer:enforce", it's parsed by spaces
+        MAVEN_EXECUTION("process"), // "process" starts mvn, "embedded" loads the maven installation of COMMAND_MVN into the running JVM
+        GIT_NATIVE_WRITER("false"), // "true" creates commits, tags and branches without running git, git hooks are not run
+        LAUNCH_CACHE("true"), // keeps compiled classes in .mvnrelease/launch in the user home and creates .mvnrelease/mvnrelease launcher next to the script
+        DAEMON_SOCKET(""), // unix domain socket of the daemon, .mvnrelease/daemon.sock in the user home when empty
+        BATCH_PARALLELISM("4"), // number of repositories processed at once by batch operation, the train releases whole waves at once
 
         // git-related:
         BRANCH_RELEASE_PATTERN("release/%s"),
         BRANCH_DEVELOP("develop"),
         TAG_RELEASE_PATTERN("v%s"),
+        TAG_MESSAGE_PATTERN(""), // message of annotated release tags, e.g. "release %s", lightweight tags are created when empty
         COMMIT_MESSAGE_RELEASE("[release-script] new branch for release %s"),
         COMMIT_MESSAGE_DEVELOPMENT("[release-script] new development version %s"),
         COMMIT_MESSAGE_BUGFIX("[release-script] new release version %s")
@@ -60,51 +139,118 @@ public class mvnrelease {
     private static Function<VersionInfo, String> releaseBranchVersionFunction = (v) -> v.major + "." + v.minor;
 
     /**
-     * Debug mode enabler.
+     * Maven installation loaded into this JVM, see {@link #loadEmbeddedMaven()}.
      */
-    private static boolean debugEnabled = false;
+    private static EmbeddedMaven embeddedMaven;
+
     private static final String CONSOLE_SEPARATOR = "-----------------------------------------------";
+    private static final String CACHE_DIR = ".mvnrelease";
+    /**
+     * Context of the run on the current thread, daemon requests and engine calls run in their own contexts, see {@link #context()}.
+     */
+    private static final ThreadLocal<RunContext> CONTEXT = new ThreadLocal<>();
+    /**
+     * Context of the script started from the command line.
+     */
+    private static final RunContext DEFAULT_CONTEXT = new RunContext(new File(Configuration.WORKING_DIR.get()), System.out, System.err);
+    /**
+     * Background compilation of the launch cache, see {@link #checkLaunchCache(String[])}.
+     */
+    private static Thread launchCacheCompilation;
+    /**
+     * Successful tool probes of this process, see {@link #probeTool(String, String...)}.
+     */
+    private static final Map<String, String> PROBES = new ConcurrentHashMap<>();
+    /**
+     * Parsed pom files, see {@link #parsePom()}.
+     */
+    private static final Map<String, PomCacheEntry> POM_CACHE = new ConcurrentHashMap<>();
+    /**
+     * Repositories served by the daemon, see {@link #runDaemon(boolean)}.
+     */
+    private static final Map<File, DaemonRepository> DAEMON_REPOSITORIES = new ConcurrentHashMap<>();
+    private static final String PROBE_CACHE_FILE = "probes.properties";
+    private static final String LAUNCH_CACHE_DIR = "launch";
+    private static final String LAUNCH_JAR = "mvnrelease.jar";
+    private static final String CDS_ARCHIVE = "app.jsa";
+    private static final String LAUNCH_SOURCE_PROPERTY = "mvnrelease.source";
+    private static final String DAEMON_SOCKET_FILE = "daemon.sock";
+
+    /**
+     * @return context of the current run
+     */
+    private static RunContext context() {
+        var context = CONTEXT.get();
+        return context != null ? context : DEFAULT_CONTEXT;
+    }
+
+    private static File workingDir() {
+        return context().workingDir;
+    }
+
+    private static PrintStream out() {
+        return context().out;
+    }
+
+    private static PrintStream err() {
+        return context().err;
+    }
 
     /**
      * Prints usage information for the script.
+     * @param versionInfo current project version used for examples, can be null
      */
     private static void printUsage(VersionInfo versionInfo) {
-        System.out.println("Automatic release script using maven and git.");
-        System.out.println("Usage:");
-        System.out.println(" MvnRelease [operation] [version] [options]");
-        System.out.println("\tAvailable operations:");
+        out().println("Automatic release script using maven and git.");
+        out().println("Usage:");
+        out().println(" MvnRelease [operation] [version] [options]");
+        out().println("\tAvailable operations:");
         for (Operation value : Operation.values()) {
-            System.out.println("\t\t[" + value.shortCut + "] " + value.help);
+            out().println("\t\t[" + value.shortCut + "] " + value.help);
+        }
+        out().println("\t\tdaemon      - stays resident and runs operations sent by --client");
+        out().println("\t\tbatch <manifest> - runs operations in several repositories, manifest lines: <directory> <operation> <version>");
+        out().println("\t\ttrain <manifest> - releases dependent repositories in dependency order, manifest lines: <directory> [version]");
+        out().println("\t\tbugfix-all  - creates next bugfix version on every release branch");
+        out().println("\t\tprewarm     - resolves the pinned versions plugin, so maven runs offline afterwards");
+        out().println("\t[version]");
+        out().println("\t\tdesired new version, should have -SNAPSHOT suffix when run with 'develop' operation");
+        out().println("\t[options]");
+        out().println("\t\t--debug   - enable debug output");
+        out().println("\t\t--confirm - enables confirmation dialog before running the process");
+        out().println("\t\t--maven   - update versions using versions-maven-plugin instead of the built-in engine");
+        out().println("\t\t--embedded-maven - runs maven goals inside the script's JVM instead of starting mvn");
+        out().println("\t\t--check-clean - fails when tracked files contain uncommitted changes");
+        out().println("\t\t--native-git  - creates commits, tags and branches without running git (git hooks are not run, git is still used when it converts line endings or runs filters)");
+        out().println("\t\t--train-cds   - records a class data sharing archive for faster start of .mvnrelease/mvnrelease launcher");
+        out().println("\t\t--client      - runs the operation in the running daemon (started by 'daemon' operation)");
+        out().println("\t\t--worktree[=ref] - runs the operation in a temporary git worktree created from the ref (current branch by default)");
+        out().println("\t\t--help    - prints this info");
+        if (versionInfo != null) {
+            out().println("\nExamples:");
+            out().println("\tjava mvnrelease.java release " + suggestVersion(Operation.RELEASE, versionInfo));
+            out().println("\tjava mvnrelease.java dev " + suggestVersion(Operation.DEV, versionInfo));
+            out().println("\tjava mvnrelease.java bugfix " + suggestVersion(Operation.BUGFIX, versionInfo));
         }
-        System.out.println("\t[version]");
-        System.out.println("\t\tdesired new version, should have -SNAPSHOT suffix when run with 'develop' operation");
-        System.out.println("\t[options]");
-        System.out.println("\t\t--debug   - enable debug output");
-        System.out.println("\t\t--confirm - enables confirmation dialog before running the process");
-        System.out.println("\t\t--help    - prints this info");
-        System.out.println("\nExamples:");
-        System.out.println("\tjava mvnrelease.java release " + suggestVersion(Operation.RELEASE, versionInfo));
-        System.out.println("\tjava mvnrelease.java dev " + suggestVersion(Operation.DEV, versionInfo));
-        System.out.println("\tjava mvnrelease.java bugfix " + suggestVersion(Operation.BUGFIX, versionInfo));
     }
 
     /**
-     * Gets the value of a specific tag from the pom.xml file.
-     * @param doc Document object representing the parsed pom.xml
-     * @param tagName Name of the tag to search for
-     * @return The text content of the tag if found, otherwise null
+     * Top-level pom elements which conventionally precede the project name. Parsing stops at any other element
+     * once the project coordinates are known, so big sections like dependencyManagement are never read.
      */
-    private static String getProjectTagValue(Document doc, String tagName) {
-        var nodeList = doc.getElementsByTagName(tagName);
-        // iterate through the NodeList to find the project [tag] value
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            Node node = nodeList.item(i);
-            if (node.getParentNode().getNodeName().equals("project")) {
-                // Found the project version
-                return node.getTextContent().trim();
-            }
-        }
-        return null;
+    private static final Set<String> POM_HEADER_ELEMENTS = Set.of("modelVersion", "parent", "groupId", "artifactId",
+            "version", "packaging", "name");
+
+    /**
+     * Shared StAX factory, DTDs and external entities are disabled to avoid any network lookup.
+     */
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private static XMLInputFactory createXmlInputFactory() {
+        var factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
     }
 
     /**
@@ -112,23 +258,88 @@ public class mvnrelease {
      * @return MavenInfo object containing groupId, artifactId, version, and name.
      */
     private static MavenInfo parsePom() {
+        var pomFile = new File(workingDir(), "pom.xml");
+        FileTime modified = null;
+        long size = -1;
         try {
-            var builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            Document doc = builder.parse(new File(Configuration.WORKING_DIR + "pom.xml"));
-            doc.getDocumentElement().normalize();
-
-            var version = getProjectTagValue(doc, "version");
-            var artifactId = getProjectTagValue(doc, "artifactId");
-            var groupId = getProjectTagValue(doc, "groupId");
-            var name = getProjectTagValue(doc, "name");
+            modified = Files.getLastModifiedTime(pomFile.toPath());
+            size = Files.size(pomFile.toPath());
+        } catch (IOException e) {
+            // reported by parsing below
+        }
+        var cached = POM_CACHE.get(pomFile.getAbsolutePath());
+        if (cached != null && cached.modified.equals(modified) && cached.size == size) {
+            return cached.mavenInfo;
+        }
+        MavenInfo mavenInfo = null;
+        try (InputStream input = new BufferedInputStream(new FileInputStream(pomFile))) {
+            mavenInfo = parsePom(input);
+        } catch (Exception e) {
+            printError("pom.xml parsing failed", e, ReleaseException.Kind.ENVIRONMENT);
+        }
+        if (mavenInfo.version == null || mavenInfo.artifactId == null || mavenInfo.groupId == null) {
+            printError("pom.xml parsing failed: missing required tags", null, ReleaseException.Kind.ENVIRONMENT);
+        }
+        POM_CACHE.put(pomFile.getAbsolutePath(), new PomCacheEntry(modified, size, mavenInfo));
+        return mavenInfo;
+    }
 
-            if (version == null || artifactId == null || groupId == null) {
-                printError("pom.xml parsing failed: missing required tags", null, true);
+    /**
+     * Reads project coordinates from the pom stream. The stream is read only until the coordinates are known.
+     * groupId and version are inherited from the parent when not specified by the project.
+     * @param input pom.xml content
+     * @return MavenInfo object, missing values are null
+     */
+    private static MavenInfo parsePom(InputStream input) throws XMLStreamException {
+        var reader = XML_INPUT_FACTORY.createXMLStreamReader(input);
+        try {
+            String groupId = null, artifactId = null, version = null, name = null;
+            String parentGroupId = null, parentVersion = null;
+            boolean inParent = false;
+            int depth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    inParent = inParent && depth > 1;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                depth++;
+                var tag = reader.getLocalName();
+                if (depth == 2) {
+                    boolean coordinatesKnown = artifactId != null
+                            && (groupId != null || parentGroupId != null)
+                            && (version != null || parentVersion != null);
+                    if (coordinatesKnown && !POM_HEADER_ELEMENTS.contains(tag)) {
+                        break;
+                    }
+                    switch (tag) {
+                        case "parent" -> inParent = true;
+                        case "groupId" -> groupId = reader.getElementText().trim();
+                        case "artifactId" -> artifactId = reader.getElementText().trim();
+                        case "version" -> version = reader.getElementText().trim();
+                        case "name" -> name = reader.getElementText().trim();
+                        default -> { }
+                    }
+                } else if (depth == 3 && inParent) {
+                    switch (tag) {
+                        case "groupId" -> parentGroupId = reader.getElementText().trim();
+                        case "version" -> parentVersion = reader.getElementText().trim();
+                        default -> { }
+                    }
+                }
+                if (reader.getEventType() == XMLStreamConstants.END_ELEMENT) {
+                    // element text was consumed
+                    depth--;
+                }
             }
-            return new MavenInfo(groupId, artifactId, version, name);
-        } catch (Exception e) {
-            printError("pom.xml parsing failed", e, true);
-            return null; // never happens
+            return new MavenInfo(groupId != null ? groupId : parentGroupId, artifactId,
+                    version != null ? version : parentVersion, name);
+        } finally {
+            reader.close();
         }
     }
 
@@ -136,17 +347,395 @@ public class mvnrelease {
      * Runs maven command.
      */
     private static int runMavenCommand(String... params) {
+        return runMavenCommand(null, params);
+    }
+
+    /**
+     * Runs maven command and collects its output into the sink.
+     * @param sink collects output lines, can be null
+     * @param params
+     * @return exit code of maven
+     */
+    private static int runMavenCommand(OutputSink sink, String... params) {
         // Run maven command with additional parameters if specified
+        var paramsList = new ArrayList<>(List.of(params));
         if (!Configuration.COMMAND_MVN_ADDITIONAL_PARAMS.get().isEmpty()) {
-            var paramsList = new ArrayList<>(List.of(params));
             paramsList.addAll(List.of(
                     Configuration.COMMAND_MVN_ADDITIONAL_PARAMS.get()
                             .trim()
                             .replaceAll("\\s+", " ")
                             .split(" ")));
-            return runCommand(Configuration.COMMAND_MVN.get(), debugEnabled, paramsList.toArray(new String[0]));
+        }
+        if (context().embeddedMaven) {
+            return runEmbeddedMaven(paramsList, sink);
+        }
+        var environment = new HashMap<String, String>();
+        var mavenOpts = mergeJvmOptions(Configuration.MAVEN_JVM_PROFILE.get());
+        if (!mavenOpts.isEmpty()) {
+            environment.put("MAVEN_OPTS", mavenOpts);
+        }
+        return runCommand(Configuration.COMMAND_MVN.get(), context().debug, sink, environment, paramsList.toArray(new String[0]));
+    }
+
+    /**
+     * Adds JVM options of the profile to MAVEN_OPTS, options already set in MAVEN_OPTS or .mvn/jvm.config are kept,
+     * e.g. -Xmx of the project wins over -Xmx of the profile. Short goals like versions:set are dominated by JIT warm-up
+     * and heap sizing, C1 only compilation with a small serial heap starts mvn about 40 % faster.
+     * @param profile space separated JVM options
+     * @return MAVEN_OPTS for the maven process
+     */
+    private static String mergeJvmOptions(String profile) {
+        var mavenOpts = System.getenv().getOrDefault("MAVEN_OPTS", "").trim();
+        var projectOptions = new ArrayList<>(List.of(mavenOpts.split("\\s+")));
+        try {
+            var jvmConfig = new File(workingDir(), ".mvn/jvm.config");
+            if (jvmConfig.isFile()) {
+                projectOptions.addAll(List.of(Files.readString(jvmConfig.toPath()).trim().split("\\s+")));
+            }
+        } catch (IOException e) {
+            printWarning("Unable to read .mvn/jvm.config", e);
+        }
+        var setOptions = projectOptions.stream().map(mvnrelease::jvmOptionKey).collect(Collectors.toSet());
+        var merged = new StringBuilder(mavenOpts);
+        for (var option : profile.trim().split("\\s+")) {
+            if (!option.isEmpty() && !setOptions.contains(jvmOptionKey(option))) {
+                merged.append(merged.length() > 0 ? " " : "").append(option);
+            }
+        }
+        return merged.toString();
+    }
+
+    /**
+     * @return part of the JVM option which tells what is set, e.g. -Xmx for -Xmx1g, TieredStopAtLevel for -XX:TieredStopAtLevel=1
+     * or GC for any -XX:+Use...GC
+     */
+    private static String jvmOptionKey(String option) {
+        if (option.startsWith("-XX:")) {
+            var name = option.substring(4).replaceFirst("^[+-]", "");
+            name = name.contains("=") ? name.substring(0, name.indexOf('=')) : name;
+            return name.startsWith("Use") && name.endsWith("GC") ? "GC" : name;
+        }
+        if (option.startsWith("-D") && option.contains("=")) {
+            return option.substring(0, option.indexOf('='));
+        }
+        for (var prefix : List.of("-Xmx", "-Xms", "-Xss", "-Xshare:")) {
+            if (option.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        return option;
+    }
+
+    /**
+     * Runs maven goals in this JVM with the maven installation found by {@link #loadEmbeddedMaven()}.
+     * The installation is loaded once, so following goals and daemon requests run on already compiled code.
+     * Maven replaces System.out and System.err while it runs, so embedded runs are serialized.
+     * @param params
+     * @param sink collects output lines, can be null
+     * @return exit code of maven
+     */
+    private static int runEmbeddedMaven(List<String> params, OutputSink sink) {
+        if (context().debug) {
+            out().println("[DEBUG] Running embedded maven: " + params);
+        }
+        var debug = context().debug;
+        // maven prints the reason of a failure after BUILD FAILURE, the tail is printed when it fails
+        var tail = new OutputSink(20);
+        var output = new PrintStream(new ForwardingOutput(text -> {
+            if (debug) {
+                out().print(text);
+            }
+            text.lines().forEach(tail::add);
+            if (sink != null) {
+                text.lines().forEach(sink::add);
+            }
+        }), true, StandardCharsets.UTF_8);
+        int exitCode;
+        try {
+            var maven = loadEmbeddedMaven();
+            synchronized (maven) {
+                var thread = Thread.currentThread();
+                var contextClassLoader = thread.getContextClassLoader();
+                thread.setContextClassLoader(maven.classLoader());
+                System.setProperty("maven.multiModuleProjectDirectory", workingDir().getAbsolutePath());
+                try {
+                    var cli = maven.cliClass().getConstructor().newInstance();
+                    exitCode = (int) maven.cliClass()
+                            .getMethod("doMain", String[].class, String.class, PrintStream.class, PrintStream.class)
+                            .invoke(cli, params.toArray(new String[0]), workingDir().getAbsolutePath(), output, output);
+                } finally {
+                    thread.setContextClassLoader(contextClassLoader);
+                }
+            }
+        } catch (ReflectiveOperationException | IOException | RuntimeException e) {
+            printError("Failed to run embedded maven: " + params, e, ReleaseException.Kind.COMMAND);
+            return -1; // should never happen
+        } finally {
+            output.flush();
+        }
+        if (exitCode != 0 && !debug) {
+            tail.lines().forEach(out()::println);
+        }
+        return exitCode;
+    }
+
+    /**
+     * Finds the maven installation of COMMAND_MVN on the PATH.
+     * @return maven home directory
+     */
+    private static Path findMavenHome() throws IOException {
+        var command = Path.of(Configuration.COMMAND_MVN.get());
+        Path executable = null;
+        if (command.getParent() != null) {
+            executable = command;
         } else {
-            return runCommand(Configuration.COMMAND_MVN.get(), debugEnabled, params);
+            for (var dir : System.getenv().getOrDefault("PATH", "").split(File.pathSeparator)) {
+                if (!dir.isEmpty() && Files.isExecutable(Path.of(dir, command.toString()))) {
+                    executable = Path.of(dir, command.toString());
+                    break;
+                }
+            }
+        }
+        if (executable == null) {
+            throw new IOException(command + " not found on PATH");
+        }
+        // bin/mvn is often a link, e.g. from /usr/bin or sdkman current version
+        return executable.toRealPath().getParent().getParent();
+    }
+
+    /**
+     * Loads the maven installation for embedded runs, mvn is not started.
+     * @return true if maven can be run embedded
+     */
+    private static boolean probeEmbeddedMaven() {
+        try {
+            loadEmbeddedMaven();
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            if (context().debug) {
+                out().println("[DEBUG] Unable to load embedded maven: " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Finds the maven installation of COMMAND_MVN on the PATH and loads lib and boot jars into a class loader
+     * which doesn't see classes of this script.
+     * @return loaded maven, it's shared by all runs
+     */
+    private static EmbeddedMaven loadEmbeddedMaven() throws IOException, ClassNotFoundException {
+        synchronized (EmbeddedMaven.class) {
+            if (embeddedMaven != null) {
+                return embeddedMaven;
+            }
+            var home = findMavenHome();
+            var jars = new ArrayList<URL>();
+            for (var dir : List.of("boot", "lib", "lib/ext")) {
+                var files = home.resolve(dir).toFile().listFiles((d, name) -> name.endsWith(".jar"));
+                if (files != null) {
+                    Arrays.sort(files);
+                    for (var file : files) {
+                        jars.add(file.toURI().toURL());
+                    }
+                }
+            }
+            if (jars.isEmpty()) {
+                throw new IOException("No maven libraries in " + home);
+            }
+            // logger configuration, bin/m2.conf adds it to the class path as well
+            jars.add(home.resolve("conf/logging").toUri().toURL());
+            System.setProperty("maven.home", home.toString());
+            var classLoader = new URLClassLoader("maven", jars.toArray(new URL[0]), ClassLoader.getPlatformClassLoader());
+            embeddedMaven = new EmbeddedMaven(home.toFile(), classLoader, classLoader.loadClass("org.apache.maven.cli.MavenCli"));
+            if (context().debug) {
+                out().println("[DEBUG] Loaded embedded maven from " + home + " (" + jars.size() + " jars)");
+            }
+            return embeddedMaven;
+        }
+    }
+
+    /**
+     * Runs the goals with as few maven invocations as possible, see {@link #planMavenInvocations(List)}.
+     * When an invocation runs the pinned versions plugin and the plugin is in the local repository, maven runs offline,
+     * so no repository metadata is downloaded. The invocation is repeated online only if something was not available
+     * offline, other failures are returned as they are.
+     * @param goals goals in the order they must run
+     * @return exit code of the failed maven invocation, 0 when all succeeded
+     */
+    private static int runMavenGoals(List<MavenGoal> goals) {
+        int exitCode = 0;
+        for (var invocation : planMavenInvocations(goals)) {
+            var command = new ArrayList<>(List.of("--batch-mode"));
+            invocation.forEach(goal -> command.add(goal.goal()));
+            invocation.forEach(goal -> goal.properties().forEach((name, value) -> command.add("-D" + name + "=" + value)));
+            boolean runsVersionsPlugin = invocation.stream()
+                    .anyMatch(goal -> goal.goal().startsWith(Configuration.VERSIONS_PLUGIN.get() + ":"));
+            if (runsVersionsPlugin && isVersionsPluginLocal()) {
+                command.add(0, "--offline");
+                var output = new OutputSink(100);
+                exitCode = runMavenCommand(output, command.toArray(new String[0]));
+                if (exitCode != 0 && isOfflineResolutionFailure(output)) {
+                    printWarning("Offline maven run could not resolve everything it needs, retrying online", null);
+                    command.remove(0);
+                    exitCode = runMavenCommand(command.toArray(new String[0]));
+                }
+            } else {
+                exitCode = runMavenCommand(command.toArray(new String[0]));
+            }
+            if (exitCode != 0) {
+                return exitCode;
+            }
+        }
+        return exitCode;
+    }
+
+    /**
+     * @param output output of a maven run with --offline
+     * @return true if maven failed because an artifact was not in the local repository
+     */
+    private static boolean isOfflineResolutionFailure(OutputSink output) {
+        return output.lines().stream()
+                .anyMatch(line -> line.contains("in offline mode") || line.contains("repository system is offline"));
+    }
+
+    /**
+     * Merges goals into maven invocations, every maven start costs seconds. A new invocation starts only when a goal
+     * reads the project after an earlier goal rewrote pom files (maven reads the project once when it starts)
+     * or when goals need different values of the same property.
+     * @param goals goals in the order they must run
+     * @return goals of each invocation
+     */
+    private static List<List<MavenGoal>> planMavenInvocations(List<MavenGoal> goals) {
+        var invocations = new ArrayList<List<MavenGoal>>();
+        List<MavenGoal> invocation = null;
+        var properties = new HashMap<String, String>();
+        boolean pomsChanged = false;
+        for (var goal : goals) {
+            boolean conflict = goal.properties().entrySet().stream()
+                    .anyMatch(property -> properties.containsKey(property.getKey())
+                            && !properties.get(property.getKey()).equals(property.getValue()));
+            if (invocation == null || conflict || (pomsChanged && goal.readsProject())) {
+                invocation = new ArrayList<>();
+                invocations.add(invocation);
+                properties.clear();
+                pomsChanged = false;
+            }
+            invocation.add(goal);
+            properties.putAll(goal.properties());
+            pomsChanged |= goal.changesPoms();
+        }
+        return invocations;
+    }
+
+    /**
+     * @return true if the pinned versions plugin is in the local maven repository, see {@link #runPrewarm(List)}
+     */
+    private static boolean isVersionsPluginLocal() {
+        var coordinates = Configuration.VERSIONS_PLUGIN.get().split(":");
+        if (coordinates.length != 3) {
+            return false;
+        }
+        var jar = findMavenLocalRepository().resolve(Path.of(coordinates[0].replace('.', '/'), coordinates[1], coordinates[2],
+                coordinates[1] + "-" + coordinates[2] + ".jar"));
+        return Files.isRegularFile(jar);
+    }
+
+    /**
+     * Finds the local repository the way maven does: -Dmaven.repo.local passed to mvn (COMMAND_MVN_ADDITIONAL_PARAMS,
+     * MAVEN_ARGS, .mvn/maven.config, MAVEN_OPTS, .mvn/jvm.config), then localRepository of user and global settings.xml.
+     * @return local repository directory, ~/.m2/repository by default
+     */
+    private static Path findMavenLocalRepository() {
+        var home = System.getProperty("user.home");
+        var args = new ArrayList<String>();
+        args.addAll(List.of(Configuration.COMMAND_MVN_ADDITIONAL_PARAMS.get().trim().split("\\s+")));
+        args.addAll(List.of(System.getenv().getOrDefault("MAVEN_ARGS", "").trim().split("\\s+")));
+        args.addAll(readMavenConfig(".mvn/maven.config"));
+        args.addAll(List.of(System.getenv().getOrDefault("MAVEN_OPTS", "").trim().split("\\s+")));
+        args.addAll(readMavenConfig(".mvn/jvm.config"));
+        File userSettings = new File(home, ".m2/settings.xml");
+        for (int i = 0; i < args.size(); i++) {
+            var arg = args.get(i);
+            if (arg.startsWith("-Dmaven.repo.local=")) {
+                return Path.of(arg.substring("-Dmaven.repo.local=".length()));
+            }
+            if ((arg.equals("-s") || arg.equals("--settings")) && i + 1 < args.size()) {
+                var settings = new File(args.get(i + 1));
+                userSettings = settings.isAbsolute() ? settings : new File(workingDir(), args.get(i + 1));
+            }
+        }
+        var settingsFiles = new ArrayList<>(List.of(userSettings));
+        try {
+            settingsFiles.add(findMavenHome().resolve("conf/settings.xml").toFile());
+        } catch (IOException e) {
+            // maven is not installed, only user settings can be read
+        }
+        for (var settings : settingsFiles) {
+            try {
+                if (settings.isFile()) {
+                    var matcher = Pattern.compile("<localRepository>\\s*([^<]*?)\\s*</localRepository>")
+                            .matcher(Files.readString(settings.toPath()).replaceAll("(?s)<!--.*?-->", ""));
+                    if (matcher.find()) {
+                        var repository = matcher.group(1).replace("${user.home}", home);
+                        for (var variable : System.getenv().entrySet()) {
+                            repository = repository.replace("${env." + variable.getKey() + "}", variable.getValue());
+                        }
+                        return Path.of(repository);
+                    }
+                }
+            } catch (IOException e) {
+                printWarning("Unable to read " + settings, e);
+            }
+        }
+        return Path.of(home, ".m2/repository");
+    }
+
+    /**
+     * @return arguments from a maven config file of the project, e.g. .mvn/maven.config
+     */
+    private static List<String> readMavenConfig(String path) {
+        var config = new File(workingDir(), path);
+        try {
+            return config.isFile() ? List.of(Files.readString(config.toPath()).trim().split("\\s+")) : List.of();
+        } catch (IOException e) {
+            printWarning("Unable to read " + config, e);
+            return List.of();
+        }
+    }
+
+    /**
+     * Resolves the pinned versions plugin with its dependencies into the local maven repository,
+     * following version updates with maven run offline.
+     * @param args options
+     * @return exit code
+     */
+    private static int runPrewarm(List<String> args) {
+        var context = context();
+        try {
+            printBanner();
+            for (var arg : args) {
+                if (!context.applyOption(arg)) {
+                    printError("Unknown option " + arg, null, ReleaseException.Kind.INVALID_REQUEST);
+                }
+            }
+            requireCapabilities(EnumSet.of(Capability.MAVEN));
+            out().print("Resolving " + Configuration.VERSIONS_PLUGIN.get() + "... ");
+            // help goal doesn't need a project, loading it resolves all plugin dependencies
+            int exitCode = runMavenCommand("--batch-mode", Configuration.VERSIONS_PLUGIN.get() + ":help");
+            if (exitCode != 0) {
+                out().println("failed");
+                printError("Unable to resolve " + Configuration.VERSIONS_PLUGIN.get() + ", maven exited with " + exitCode, null, ReleaseException.Kind.COMMAND);
+            }
+            out().println("done");
+            if (isVersionsPluginLocal()) {
+                out().println("Maven updates versions offline from now on");
+            } else {
+                printWarning("The plugin was not found in " + findMavenLocalRepository() + ", maven keeps running online", null);
+            }
+            return 0;
+        } catch (ReleaseException e) {
+            return 1;
         }
     }
 
@@ -157,7 +746,7 @@ public class mvnrelease {
      * @return
      */
     private static int runCommand(String command, String... params) {
-        return runCommand(command, debugEnabled, params);
+        return runCommand(command, context().debug, params);
     }
 
     /**
@@ -168,13 +757,44 @@ public class mvnrelease {
      * @return exit code of the command
      */
     private static int runCommand(String command, boolean printResult, String... params) {
+        return runCommand(command, printResult, null, params);
+    }
+
+    /**
+     * Runs a command in the working directory, optionally prints the result and collects it into the sink.
+     * stderr is merged into stdout, so a single reader drains both and the child never blocks on a full pipe.
+     * @param command
+     * @param printResult
+     * @param sink collects output lines, can be null
+     * @param params
+     * @return exit code of the command
+     */
+    private static int runCommand(String command, boolean printResult, OutputSink sink, String... params) {
+        return runCommand(command, printResult, sink, Map.of(), params);
+    }
+
+    /**
+     * Runs a command in the working directory with additional environment variables.
+     * @param command
+     * @param printResult
+     * @param sink collects output lines, can be null
+     * @param environment variables added to the environment of the command
+     * @param params
+     * @return exit code of the command
+     */
+    private static int runCommand(String command, boolean printResult, OutputSink sink, Map<String, String> environment, String... params) {
         try {
-            if (debugEnabled) {
-                System.out.println("[DEBUG] Running command: " + command + " " + Arrays.toString(params));
+            if (context().debug) {
+                out().println("[DEBUG] Running command: " + command + " " + Arrays.toString(params));
             }
             // Create a ProcessBuilder
             ProcessBuilder processBuilder = new ProcessBuilder();
-            processBuilder.directory(new File(Configuration.WORKING_DIR.get()));
+            processBuilder.directory(workingDir());
+            processBuilder.redirectErrorStream(true);
+            processBuilder.environment().putAll(environment);
+            if (context().debug && !environment.isEmpty()) {
+                out().println("[DEBUG] Environment: " + environment);
+            }
             var commandList = new ArrayList<String>();
             commandList.add(command);
             commandList.addAll(List.of(params));
@@ -182,127 +802,382 @@ public class mvnrelease {
 
             // Start the process
             Process process = processBuilder.start();
+            process.getOutputStream().close();
 
             // Read the output of the command
+            var tail = new OutputSink(10);
+            String failure = null;
             try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
                 String line;
                 // somehow on windows, the whole output must be read when executing batch script
                 while ((line = reader.readLine()) != null) {
                     if (printResult) {
-                        System.out.println(line);
+                        out().println(line);
+                    }
+                    if (sink != null) {
+                        sink.add(line);
+                    }
+                    tail.add(line);
+                    if (failure == null && isFailureMarker(command, line)) {
+                        failure = line;
+                        if (!command.equals(Configuration.COMMAND_MVN.get())) {
+                            break;
+                        }
+                    } else if (failure != null && line.startsWith("[ERROR]")) {
+                        // maven prints the reason after BUILD FAILURE, it tells if an offline run can be retried online
+                        break;
                     }
                 }
             }
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (printResult) {
-                        System.out.println(line);
-                    }
+            if (failure != null) {
+                // the command already failed, the rest of its output is not waited for
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+                if (!printResult) {
+                    tail.lines().forEach(out()::println);
                 }
+                printWarning(command + " failed (" + failure.trim() + "), the process was stopped", null);
+                process.waitFor();
+                return 1;
             }
 
             // Wait for the process to complete and get the exit code
             int exitCode = process.waitFor();
             return exitCode;
         } catch (Exception e) {
-            printError("Failed to run " + command + " command: " + params, e, true);
+            printError("Failed to run " + command + " command: " + Arrays.toString(params), e, ReleaseException.Kind.COMMAND);
             return -1; // should never happen
         }
     }
 
+    /**
+     * Tells if the output line shows that the command has already failed, then it's stopped without waiting for the rest of the output.
+     * @param command
+     * @param line output line
+     * @return true for "BUILD FAILURE" of maven (it's stopped after the first error line following it) and "fatal:" of git
+     */
+    private static boolean isFailureMarker(String command, String line) {
+        if (command.equals(Configuration.COMMAND_MVN.get())) {
+            return line.contains("BUILD FAILURE");
+        }
+        if (command.equals(Configuration.COMMAND_GIT.get())) {
+            return line.startsWith("fatal:");
+        }
+        return false;
+    }
+
     /**
      * Gets the current branch name from the Git repository.
-     * @return The name of the current branch, or an empty string if it fails.
+     * HEAD is read directly from the .git directory, git is started only when it can't be read.
+     * In a temporary worktree it's the branch the worktree was created from, see {@link #runInWorktree(Operation, String, boolean)}.
+     * @return The name of the current branch, "HEAD" when detached, or an empty string if it fails.
      */
     private static String getCurrentBranch() {
-        try {
-            // Run the Git command to get the current branch name
-            ProcessBuilder processBuilder = new ProcessBuilder(Configuration.COMMAND_GIT.get(), "rev-parse", "--abbrev-ref", "HEAD");
-            processBuilder.directory(new File(Configuration.WORKING_DIR.get()));
-            Process process = processBuilder.start();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                return reader.readLine();
+        if (context().worktreeBranch != null) {
+            return context().worktreeBranch;
+        }
+        var repository = GitRepository.find(workingDir());
+        if (repository != null) {
+            try {
+                return repository.currentBranch();
+            } catch (IOException e) {
+                printWarning("Unable to read HEAD from " + repository.gitDir + ", running git instead", e);
             }
-        } catch (Exception e) {
-            printError("Failed to get current branch name", e, false);
         }
-        return "";
+        // Run the Git command to get the current branch name
+        var output = new OutputSink(1);
+        if (runCommand(Configuration.COMMAND_GIT.get(), false, output, "rev-parse", "--abbrev-ref", "HEAD") != 0
+                || output.lastLine() == null) {
+            printError("Failed to get current branch name", null, false);
+            return "";
+        }
+        return output.lastLine();
     }
 
     /**
-     * Prints an error message for the user and optionally exits the script.
-     * @param error
-     * @param e
-     * @param fail
+     * Checks whether the ref (e.g. refs/tags/v1.0.0) exists in the Git repository.
+     * @param ref full name of the ref
+     * @return true if the ref exists, false if it doesn't or the repository can't be read
      */
-    private static void printError(String error, Exception e, boolean fail) {
-        if (debugEnabled) {
-            System.err.println("[ERROR] " + error);
-            if (e != null) {
-                e.printStackTrace();
+    private static boolean gitRefExists(String ref) {
+        var repository = GitRepository.find(workingDir());
+        try {
+            return repository != null && repository.resolve(ref) != null;
+        } catch (IOException e) {
+            printWarning("Unable to read " + ref + " from " + repository.gitDir, e);
+            return false;
+        }
+    }
+
+    /**
+     * Makes sure the capabilities are available, only capabilities which were not checked yet are probed.
+     * Tool checks run concurrently, the script fails when any of them is not available.
+     * @param capabilities
+     */
+    private static void requireCapabilities(Set<Capability> capabilities) {
+        var missing = EnumSet.noneOf(Capability.class);
+        missing.addAll(capabilities);
+        missing.removeAll(context().capabilities);
+        if (missing.isEmpty()) {
+            return;
+        }
+        out().println("Initializing...");
+        // tool checks are cached until the tool installation changes
+        var context = context();
+        var mavenCheck = missing.contains(Capability.MAVEN)
+                ? CompletableFuture.supplyAsync(() -> context.call(() -> context.embeddedMaven
+                        ? probeEmbeddedMaven()
+                        : probeTool(Configuration.COMMAND_MVN.get(), "--version")))
+                : null;
+        var gitCheck = missing.contains(Capability.GIT)
+                ? CompletableFuture.supplyAsync(() -> context.call(() -> probeTool(Configuration.COMMAND_GIT.get(), "--version")))
+                : null;
+        if (mavenCheck != null) {
+            out().print("Checking maven... ");
+            if (!join(mavenCheck)) {
+                printError("Maven is not installed or not found in PATH", null, ReleaseException.Kind.ENVIRONMENT);
+            } else {
+                out().println("OK");
             }
-        } else {
-            System.err.print("[ERROR] " + error);
-            if (e != null) {
-                System.err.println(":: " + e.getMessage());
+        }
+        if (gitCheck != null) {
+            out().print("Checking git... ");
+            if (!join(gitCheck)) {
+                printError("Git is not installed or not found in PATH", null, ReleaseException.Kind.ENVIRONMENT);
+            } else if (GitRepository.find(workingDir()) == null) {
+                // constant time check, git status would walk the whole working tree
+                printError("Git repository doesn't exist in the working directory", null, ReleaseException.Kind.ENVIRONMENT);
             } else {
-                System.err.println();
+                out().println("OK");
             }
         }
-        if (fail) {
-            System.exit(1);
+        if (missing.contains(Capability.POM)) {
+            out().println("Working directory: " + workingDir().getAbsolutePath());
+            context.mavenInfo = parsePom();
+            out().println(context.mavenInfo);
         }
+        out().println(CONSOLE_SEPARATOR);
+        context.capabilities.addAll(missing);
     }
 
     /**
-     * Prints a warning message for the user if something didn't go as expected.
-     * @param warning
-     * @param e
+     * Waits for the result, failure of the task fails the script.
      */
-    private static void printWarning(String warning, Exception e) {
-        if (debugEnabled) {
-            System.err.println("[WARN] " + warning);
-            if (e != null) {
-                e.printStackTrace();
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ReleaseException releaseException) {
+                throw releaseException;
             }
-        } else {
-            System.err.println("[WARN] " + warning);
+            throw e;
         }
     }
 
     /**
-     * Asks user for the desired operation to perform base on the list of supported operations.
-     * 'x' is used to exit the script.
-     * @return
+     * Fails if tracked files in the working tree have uncommitted changes.
+     * Untracked files are not inspected and git uses fsmonitor when it's configured,
+     * so the check stays cheap on big repositories.
      */
-    private static Operation askOperation() {
-        var console = new Scanner(System.in);
-        System.out.println("What would you like to perform:");
-        for (Operation value : Operation.values()) {
-            System.out.println("\t[" + value.shortCut + "]\t" + value.help);
-        }
-        System.out.println("\t-------------");
-        System.out.println("\t[x]\texit");
-        String action = "";
-        Operation operation = null;
-        while (operation == null) {
-            System.out.print("Choice: ");
-            action = console.nextLine().trim();
-            for (Operation value : Operation.values()) {
-                if (action.equalsIgnoreCase(value.shortCut) || action.equalsIgnoreCase(value.toString())) {
-                    operation = value;
-                    break;
-                }
-            }
-            if (action.equalsIgnoreCase("x")) {
-                System.exit(0);
-            }
-            if (operation == null) {
-                System.out.println("Unknown operation, please try again.");
-            }
+    private static void checkCleanTree() {
+        out().print("Checking working tree... ");
+        var output = new OutputSink(1);
+        if (runCommand(Configuration.COMMAND_GIT.get(), false, output, "status", "--porcelain", "--untracked-files=no") != 0) {
+            printError("Git status failed", null, ReleaseException.Kind.COMMAND);
+        } else if (output.lastLine() != null) {
+            printError("Working tree contains uncommitted changes", null, ReleaseException.Kind.CONFLICT);
+        } else {
+            out().println("OK");
         }
-        return operation;
+    }
+
+    /**
+     * Checks that the tool works by running it with given parameters. Successful result is cached
+     * in the cache directory, the key is the resolved executable path and its modification time,
+     * so the tool is probed again only when it's replaced or upgraded.
+     * @param command
+     * @param params
+     * @return true if the tool is available
+     */
+    private static boolean probeTool(String command, String... params) {
+        var executable = findExecutable(command);
+        if (executable == null) {
+            return false;
+        }
+        var key = executable + "|" + executable.toFile().lastModified() + "|" + String.join(" ", params);
+        if (key.equals(PROBES.get(command))) {
+            return true;
+        }
+        synchronized (PROBE_CACHE_FILE) {
+            if (key.equals(readProbeCache().getProperty(command))) {
+                PROBES.put(command, key);
+                return true;
+            }
+        }
+        if (runCommand(executable.toString(), false, params) != 0) {
+            return false;
+        }
+        PROBES.put(command, key);
+        synchronized (PROBE_CACHE_FILE) {
+            var cache = readProbeCache();
+            cache.setProperty(command, key);
+            try (var output = Files.newOutputStream(new File(getCacheDir(), PROBE_CACHE_FILE).toPath())) {
+                cache.store(output, "mvnrelease tool probes");
+            } catch (IOException e) {
+                printWarning("Unable to write probe cache", e);
+            }
+        }
+        return true;
+    }
+
+    private static Properties readProbeCache() {
+        var cache = new Properties();
+        var cacheFile = new File(getCacheDir(), PROBE_CACHE_FILE);
+        if (cacheFile.isFile()) {
+            try (var input = Files.newInputStream(cacheFile.toPath())) {
+                cache.load(input);
+            } catch (IOException e) {
+                printWarning("Unable to read probe cache", e);
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Finds the executable on PATH and resolves symbolic links, so switching tool versions is detected.
+     * @param command command name or path
+     * @return real path of the executable or null if it's not found
+     */
+    private static Path findExecutable(String command) {
+        var candidates = new ArrayList<File>();
+        if (command.contains("/") || command.contains(File.separator)) {
+            candidates.add(new File(command));
+        } else {
+            for (var dir : System.getenv().getOrDefault("PATH", "").split(File.pathSeparator)) {
+                candidates.add(new File(dir, command));
+                if (System.getProperty("os.name").startsWith("Windows")) {
+                    candidates.add(new File(dir, command + ".exe"));
+                }
+            }
+        }
+        for (var candidate : candidates) {
+            if (candidate.isFile() && candidate.canExecute()) {
+                try {
+                    return candidate.toPath().toRealPath();
+                } catch (IOException e) {
+                    return candidate.toPath().toAbsolutePath();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Directory for cached data in the working directory, it ignores itself in git.
+     * @return the cache directory
+     */
+    private static File getCacheDir() {
+        var cacheDir = new File(workingDir(), CACHE_DIR);
+        var gitIgnore = new File(cacheDir, ".gitignore");
+        if (!gitIgnore.isFile()) {
+            try {
+                Files.createDirectories(cacheDir.toPath());
+                Files.writeString(gitIgnore.toPath(), "*\n");
+            } catch (IOException e) {
+                printWarning("Unable to create cache directory " + cacheDir.getPath(), e);
+            }
+        }
+        return cacheDir;
+    }
+
+    /**
+     * Prints an error message for the user and optionally fails the run with {@link ReleaseException}.
+     * @param error
+     * @param e
+     * @param fail
+     */
+    private static void printError(String error, Exception e, boolean fail) {
+        if (fail) {
+            printError(error, e, ReleaseException.Kind.FAILED);
+        }
+        printError(error, e);
+    }
+
+    /**
+     * Prints an error message for the user and fails the run with {@link ReleaseException} of given kind.
+     * @param error
+     * @param e
+     * @param kind
+     */
+    private static void printError(String error, Exception e, ReleaseException.Kind kind) {
+        printError(error, e);
+        throw new ReleaseException(kind, error, e);
+    }
+
+    private static void printError(String error, Exception e) {
+        if (context().debug) {
+            err().println("[ERROR] " + error);
+            if (e != null) {
+                e.printStackTrace(err());
+            }
+        } else {
+            err().print("[ERROR] " + error);
+            if (e != null) {
+                err().println(":: " + e.getMessage());
+            } else {
+                err().println();
+            }
+        }
+    }
+
+    /**
+     * Prints a warning message for the user if something didn't go as expected.
+     * @param warning
+     * @param e
+     */
+    private static void printWarning(String warning, Exception e) {
+        if (context().debug) {
+            err().println("[WARN] " + warning);
+            if (e != null) {
+                e.printStackTrace(err());
+            }
+        } else {
+            err().println("[WARN] " + warning);
+        }
+    }
+
+    /**
+     * Asks user for the desired operation to perform base on the list of supported operations.
+     * 'x' is used to exit the script.
+     * @return
+     */
+    private static Operation askOperation() {
+        var console = new Scanner(System.in);
+        out().println("What would you like to perform:");
+        for (Operation value : Operation.values()) {
+            out().println("\t[" + value.shortCut + "]\t" + value.help);
+        }
+        out().println("\t-------------");
+        out().println("\t[x]\texit");
+        String action = "";
+        Operation operation = null;
+        while (operation == null) {
+            out().print("Choice: ");
+            action = console.nextLine().trim();
+            for (Operation value : Operation.values()) {
+                if (action.equalsIgnoreCase(value.shortCut) || action.equalsIgnoreCase(value.toString())) {
+                    operation = value;
+                    break;
+                }
+            }
+            if (action.equalsIgnoreCase("x")) {
+                System.exit(0);
+            }
+            if (operation == null) {
+                out().println("Unknown operation, please try again.");
+            }
+        }
+        return operation;
     }
 
     /**
@@ -314,7 +1189,7 @@ public class mvnrelease {
     private static String suggestVersion(Operation operation, VersionInfo versionInfo) {
         try {
             switch (operation) {
-                case RELEASE -> {
+                case RELEASE, CYCLE -> {
                     // suggest version based on current version
                     return versionInfo.major + "." + versionInfo.minor + "." + versionInfo.patch;
                 }
@@ -337,6 +1212,19 @@ public class mvnrelease {
         return "";
     }
 
+    /**
+     * Suggests a version based on a version read from a pom, which may be missing or e.g. a ${revision} expression.
+     * @param operation
+     * @param pomVersion
+     * @return suggested version, empty if the pom version is not in major.minor[.patch][-suffix] format
+     */
+    private static String suggestVersion(Operation operation, String pomVersion) {
+        if (pomVersion == null || !pomVersion.matches("\\d+\\.\\d+(\\.\\d+)?(-.*)?")) {
+            return "";
+        }
+        return suggestVersion(operation, new VersionInfo(pomVersion));
+    }
+
     /**
      * Asks user for the desired version. It provides suggestion if available.
      * @param suggestedVersion
@@ -345,9 +1233,9 @@ public class mvnrelease {
     private static String askVersion(String suggestedVersion) {
         var console = new Scanner(System.in);
         if (!suggestedVersion.isEmpty()) {
-            System.out.print("What is the desired version [" + suggestedVersion + "]: ");
+            out().print("What is the desired version [" + suggestedVersion + "]: ");
         } else {
-            System.out.print("What is the desired version: ");
+            out().print("What is the desired version: ");
         }
         String version = null;
         while (version == null) {
@@ -371,25 +1259,242 @@ public class mvnrelease {
         if (interactive) {
             // ask user if it's ok and continue
             var console = new Scanner(System.in);
-            System.out.print("Is this correct? [y/N]: ");
+            out().print("Is this correct? [y/N]: ");
             var confirm = console.nextLine().trim();
             if (!"y".equalsIgnoreCase(confirm)) {
-                System.out.println("Aborting...");
-                System.exit(1);
+                out().println("Aborting...");
+                throw new ReleaseException(ReleaseException.Kind.ABORTED, "Aborted by user", null);
+            }
+            out().println(CONSOLE_SEPARATOR);
+        }
+    }
+
+    /**
+     * Updates the version in the pom.xml files.
+     * The built-in engine is used by default, maven is used when requested or when the built-in engine fails.
+     * SNAPSHOT references to projects released by the train are updated as well, see {@link #runTrain(List)}.
+     * @param version
+     * @return pom files which may have been changed, null if they are not known
+     */
+    private static List<File> runMavenVersionUpdate(String version) {
+        List<File> changedFiles = null;
+        if (!context().mavenEngine) {
+            out().print("Updating pom files... ");
+            try {
+                changedFiles = PomReactor.load(new File(workingDir(), "pom.xml")).updateVersion(version, context().dependencyVersions);
+                out().println("done (" + changedFiles.size() + " files)");
+                if (context().debug) {
+                    changedFiles.forEach(f -> out().println("[DEBUG] Updated: " + f.getPath()));
+                }
+            } catch (Exception e) {
+                out().println("failed");
+                printWarning("Built-in version update failed, falling back to maven: " + e.getMessage(), e);
+            }
+        }
+        var goals = new ArrayList<MavenGoal>();
+        if (changedFiles == null) {
+            // released dependencies are not touched by versions:set, so they are updated before maven runs
+            if (!context().dependencyVersions.isEmpty()) {
+                try {
+                    PomReactor.load(new File(workingDir(), "pom.xml")).updateVersion(null, context().dependencyVersions);
+                } catch (Exception e) {
+                    printError("Unable to update versions of released dependencies", e, ReleaseException.Kind.FAILED);
+                }
+            }
+            // backup poms are not generated, so versions:commit would have nothing to do
+            goals.add(new MavenGoal(Configuration.VERSIONS_PLUGIN.get() + ":set",
+                    Map.of("newVersion", version, "generateBackupPoms", "false", "runInReleaseMode", "true"), true, true));
+        }
+        for (var goal : Configuration.MAVEN_ADDITIONAL_GOALS.get().trim().split("\\s+")) {
+            if (!goal.isEmpty()) {
+                goals.add(new MavenGoal(goal, Map.of(), false, true));
+            }
+        }
+        if (!goals.isEmpty()) {
+            requireCapabilities(EnumSet.of(Capability.MAVEN));
+            out().print("Running maven... ");
+            int exitCode = runMavenGoals(goals);
+            if (exitCode != 0) {
+                out().println("failed");
+                printError("Maven failed with exit code " + exitCode + ", pom files may be partially updated", null, ReleaseException.Kind.COMMAND);
+            }
+            out().println("done");
+        }
+        if (changedFiles != null) {
+            return changedFiles;
+        }
+        // maven doesn't tell which files were changed, all module poms are candidates
+        try {
+            var pomFiles = new ArrayList<File>();
+            PomReactor.load(new File(workingDir(), "pom.xml")).poms.forEach(pom -> pomFiles.add(pom.file));
+            return pomFiles;
+        } catch (Exception e) {
+            printWarning("Unable to list module pom files, all modified files will be committed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Git session of this run, it's started on first use. The daemon keeps the session of a repository between requests.
+     * @return the session
+     */
+    private static GitSession getGitSession() {
+        var context = context();
+        if (context.gitSession == null) {
+            context.gitSession = new GitSession(context.workingDir);
+        }
+        return context.gitSession;
+    }
+
+    /**
+     * Applies ref updates as one atomic transaction, the script fails if the transaction fails.
+     * @param updates update-ref --stdin commands
+     */
+    private static void runGitRefUpdate(String... updates) {
+        try {
+            getGitSession().updateRefs(updates);
+        } catch (IOException e) {
+            printError("Git ref update failed", e, ReleaseException.Kind.COMMAND);
+        }
+    }
+
+    /**
+     * Resolves the revision using the git session.
+     * @param revision
+     * @return object id, the script fails if it can't be resolved
+     */
+    private static String resolveGitRevision(String revision) {
+        try {
+            var id = getGitSession().resolve(revision);
+            if (id != null) {
+                return id;
+            }
+        } catch (IOException e) {
+            printError("Unable to resolve " + revision, e, ReleaseException.Kind.COMMAND);
+        }
+        printError("Unable to resolve " + revision, null, ReleaseException.Kind.COMMAND);
+        return null; // never happens
+    }
+
+    /**
+     * Creates the update-ref command for the release tag, the annotated tag object is written first when configured.
+     * @param version released version
+     * @param commit tagged commit
+     * @return update-ref --stdin command
+     */
+    private static String createGitTagUpdate(String version, String commit) {
+        var tagName = String.format(Configuration.TAG_RELEASE_PATTERN.get(), version);
+        var target = commit;
+        if (!Configuration.TAG_MESSAGE_PATTERN.get().isEmpty()) {
+            try {
+                var writer = new GitNativeWriter(GitRepository.find(workingDir()));
+                target = writer.writeTag(commit, tagName, String.format(Configuration.TAG_MESSAGE_PATTERN.get(), version));
+            } catch (IOException e) {
+                printError("Unable to create tag " + tagName, e, ReleaseException.Kind.COMMAND);
+            }
+        }
+        return "create refs/tags/" + tagName + " " + target;
+    }
+
+    /**
+     * Native commits can't be created when git would convert file content on commit, when the index can't be updated
+     * or the identity can't be read from git config, git is used instead then. Checked before pom files are changed.
+     */
+    private static void checkNativeGit() {
+        try {
+            var repository = GitRepository.find(workingDir());
+            GitIndex.read(new File(repository.gitDir, "index"));
+            var dirs = new ArrayList<File>();
+            PomReactor.load(new File(workingDir(), "pom.xml")).poms.forEach(pom -> dirs.add(pom.file.getAbsoluteFile().getParentFile()));
+            var writer = new GitNativeWriter(repository);
+            writer.identity("COMMITTER");
+            var conversion = writer.findContentConversion(dirs);
+            if (conversion != null) {
+                printWarning("Git converts committed files (" + conversion + "), git is used instead of the native writer", null);
+                context().nativeGit = false;
+            }
+        } catch (Exception e) {
+            printWarning("Native git writer can't be used, git is used instead: " + e.getMessage(), e);
+            context().nativeGit = false;
+        }
+    }
+
+    /**
+     * Commits the files and updates refs without running git, see {@link GitNativeWriter}.
+     * @param files files to commit
+     * @param message commit message
+     * @param newBranch branch to create and check out, null to advance the current branch
+     * @param tagVersion version used for the release tag, no tag is created when null
+     * @return id of the new commit
+     */
+    private static String runNativeGitCommit(List<File> files, String message, String newBranch, String tagVersion) {
+        if (files == null) {
+            printError("Changed pom files are not known, commit can't be created without git", null, ReleaseException.Kind.FAILED);
+        }
+        if (files.isEmpty()) {
+            printWarning("No pom file was changed, nothing to commit", null);
+        }
+        try {
+            var writer = new GitNativeWriter(GitRepository.find(workingDir()));
+            var tagName = tagVersion == null ? null : String.format(Configuration.TAG_RELEASE_PATTERN.get(), tagVersion);
+            var tagMessage = tagVersion == null ? "" : String.format(Configuration.TAG_MESSAGE_PATTERN.get(), tagVersion);
+            var commit = writer.commit(files, message, newBranch, tagName, tagMessage);
+            if (context().debug) {
+                out().println("[DEBUG] Created commit " + commit);
             }
-            System.out.println(CONSOLE_SEPARATOR);
+            return commit;
+        } catch (IOException e) {
+            printError("Git commit failed", e, ReleaseException.Kind.COMMAND);
+            return null; // never happens
+        }
+    }
+
+    /**
+     * Commits given files only, other changes in the working tree or index are left untouched.
+     * @param files files to commit, all tracked modified files are committed when null
+     * @param message commit message
+     * @return exit code of git commit
+     */
+    private static int runGitCommit(List<File> files, String message) {
+        if (files == null) {
+            return runCommand(Configuration.COMMAND_GIT.get(), "commit", "-am", message);
+        }
+        if (files.isEmpty()) {
+            printWarning("No pom file was changed, nothing to commit", null);
+            return 0;
+        }
+        var workingDir = workingDir().toPath().toAbsolutePath().normalize();
+        var params = new ArrayList<>(List.of("commit", "-m", message, "--"));
+        for (var file : files) {
+            params.add(workingDir.relativize(file.toPath().toAbsolutePath().normalize()).toString());
+        }
+        return runCommand(Configuration.COMMAND_GIT.get(), params.toArray(new String[0]));
+    }
+
+    /**
+     * Fails if another release branch already contains the version, e.g. when the branch pattern
+     * doesn't tell the versions apart. Poms of all release branches are read at once.
+     * @param version
+     */
+    private static void checkVersionNotReleased(String version) {
+        var collisions = readPoms(listReleaseBranches()).entrySet().stream()
+                .filter(pom -> version.equals(pom.getValue().version))
+                .map(pom -> pom.getKey().substring("refs/heads/".length()))
+                .toList();
+        if (!collisions.isEmpty()) {
+            printError("Version " + version + " is already on " + String.join(", ", collisions), null, ReleaseException.Kind.CONFLICT);
         }
     }
 
     /**
-     * Runs the Maven command to update the version in the pom.xml files.
+     * Fails if the release tag for the version already exists.
      * @param version
      */
-    private static void runMavenVersionUpdate(String version) {
-        System.out.print("Running maven... ");
-        runMavenCommand("--batch-mode", "versions:set", "-DnewVersion=" + version, "-DgenerateBackupPoms=false", "-DrunInReleaseMode=true");
-        runMavenCommand("--batch-mode", "versions:commit");
-        System.out.println("done");
+    private static void checkTagDoesNotExist(String version) {
+        var tagName = String.format(Configuration.TAG_RELEASE_PATTERN.get(), version);
+        if (gitRefExists("refs/tags/" + tagName)) {
+            printError("Tag " + tagName + " already exists", null, ReleaseException.Kind.CONFLICT);
+        }
     }
 
     /**
@@ -398,35 +1503,81 @@ public class mvnrelease {
      *
      * @param version
      * @param interactive
+     * @return the created branch, tag and commit
      */
-    private static void runRelease(String version, boolean interactive) {
+    private static ReleaseResult runRelease(String version, boolean interactive) {
         // parse version for branch name
         if (version.endsWith("-SNAPSHOT")) {
             printWarning("Release version should not end with -SNAPSHOT suffix!", null);
         }
         var versionInfo = new VersionInfo(version);
-        System.out.println(CONSOLE_SEPARATOR);
-        System.out.println("::::::: Performing release :::::::");
+        out().println(CONSOLE_SEPARATOR);
+        out().println("::::::: Performing release :::::::");
         var branchVersion = releaseBranchVersionFunction.apply(versionInfo);
         var branchName = String.format(Configuration.BRANCH_RELEASE_PATTERN.get(), branchVersion);
-        System.out.println("\tRelease version     : " + version);
-        System.out.println("\tCurrent branch name : " + getCurrentBranch());
-        System.out.println("\tBranch to be created: " + branchName);
-        System.out.println(CONSOLE_SEPARATOR);
+        out().println("\tRelease version     : " + version);
+        var currentBranch = getCurrentBranch();
+        out().println("\tCurrent branch name : " + currentBranch);
+        out().println("\tBranch to be created: " + branchName);
+        out().println(CONSOLE_SEPARATOR);
+        if (gitRefExists("refs/heads/" + branchName)) {
+            printError("Branch " + branchName + " already exists", null, ReleaseException.Kind.CONFLICT);
+        }
+        checkTagDoesNotExist(version);
+        checkVersionNotReleased(version);
         userConfirm(interactive);
 
-        runMavenVersionUpdate(version);
+        var pomFiles = runMavenVersionUpdate(version);
+
+        out().print("Running git... ");
+        var commitMessage = String.format(Configuration.COMMIT_MESSAGE_RELEASE.get(), branchVersion);
+        String releaseCommit;
+        if (context().nativeGit) {
+            releaseCommit = runNativeGitCommit(pomFiles, commitMessage, branchName, version);
+        } else {
+            // commit on detached HEAD, then create the branch and the tag together in one transaction
+            var startCommit = resolveGitRevision("HEAD");
+            runGitRefUpdate("option no-deref", "update HEAD " + startCommit);
+            try {
+                if (runGitCommit(pomFiles, commitMessage) != 0) {
+                    printError("Git commit failed", null, ReleaseException.Kind.COMMAND);
+                }
+                releaseCommit = resolveGitRevision("HEAD");
+                runGitRefUpdate("create refs/heads/" + branchName + " " + releaseCommit, createGitTagUpdate(version, releaseCommit));
+                if (runCommand(Configuration.COMMAND_GIT.get(), "symbolic-ref", "HEAD", "refs/heads/" + branchName) != 0) {
+                    printError("Unable to switch to branch " + branchName, null, ReleaseException.Kind.COMMAND);
+                }
+            } catch (ReleaseException e) {
+                restoreHead(currentBranch, startCommit);
+                throw e;
+            }
+        }
+        out().println("done");
 
-        System.out.print("Running git... ");
-        runCommand(Configuration.COMMAND_GIT.get(), "checkout", "-b", branchName);
-        runCommand(Configuration.COMMAND_GIT.get(), "commit","-am", String.format(Configuration.COMMIT_MESSAGE_RELEASE.get(), branchVersion));
-        runCommand(Configuration.COMMAND_GIT.get(), "tag", String.format(Configuration.TAG_RELEASE_PATTERN.get(), version));
-        System.out.println("done");
+        out().println("::::::: Release complete :::::::");
+        out().println("Please verify the release and push the changes to the remote repository:");
+        out().println("git push origin " + branchName);
+        out().println(CONSOLE_SEPARATOR);
+        return new ReleaseResult(version, branchName, String.format(Configuration.TAG_RELEASE_PATTERN.get(), version),
+                releaseCommit, pomFiles);
+    }
 
-        System.out.println("::::::: Release complete :::::::");
-        System.out.println("Please verify the release and push the changes to the remote repository:");
-        System.out.println("git push origin " + branchName);
-        System.out.println(CONSOLE_SEPARATOR);
+    /**
+     * Puts HEAD back where the release started after a failed release, the original branch is checked out again
+     * or HEAD is detached at the start commit. Pom changes stay in the working tree and the index.
+     * @param branch branch the release started on, "HEAD" when it was detached
+     * @param startCommit commit the release started from
+     */
+    private static void restoreHead(String branch, String startCommit) {
+        try {
+            if (branch.equals("HEAD")) {
+                runGitRefUpdate("option no-deref", "update HEAD " + startCommit);
+            } else if (runCommand(Configuration.COMMAND_GIT.get(), "symbolic-ref", "HEAD", "refs/heads/" + branch) != 0) {
+                printWarning("Unable to check out " + branch + " again, HEAD stays detached", null);
+            }
+        } catch (ReleaseException e) {
+            printWarning("Unable to restore HEAD at " + startCommit, e);
+        }
     }
 
     /**
@@ -435,8 +1586,9 @@ public class mvnrelease {
      *
      * @param version
      * @param interactive
+     * @return the updated branch and its commit
      */
-    private static void runDevelop(String version, boolean interactive) {
+    private static ReleaseResult runDevelop(String version, boolean interactive) {
         // parse version for branch name
         var currentBranch = getCurrentBranch();
         if (!currentBranch.equals(Configuration.BRANCH_DEVELOP.get())) {
@@ -445,23 +1597,32 @@ public class mvnrelease {
         if (!version.endsWith("-SNAPSHOT")) {
             printWarning("Development version should end with -SNAPSHOT suffix!", null);
         }
-        System.out.println(CONSOLE_SEPARATOR);
-        System.out.println("::::::: Performing development version update :::::::");
-        System.out.println("\tCurrent branch name : " + currentBranch);
-        System.out.println("\tNew development version: " + version);
-        System.out.println(CONSOLE_SEPARATOR);
+        out().println(CONSOLE_SEPARATOR);
+        out().println("::::::: Performing development version update :::::::");
+        out().println("\tCurrent branch name : " + currentBranch);
+        out().println("\tNew development version: " + version);
+        out().println(CONSOLE_SEPARATOR);
         userConfirm(interactive);
 
-        runMavenVersionUpdate(version);
+        var pomFiles = runMavenVersionUpdate(version);
 
-        System.out.print("Running git... ");
-        runCommand(Configuration.COMMAND_GIT.get(), "commit","-am", String.format(Configuration.COMMIT_MESSAGE_DEVELOPMENT.get(), version));
-        System.out.println("done");
+        out().print("Running git... ");
+        String commit;
+        if (context().nativeGit) {
+            commit = runNativeGitCommit(pomFiles, String.format(Configuration.COMMIT_MESSAGE_DEVELOPMENT.get(), version), null, null);
+        } else {
+            if (runGitCommit(pomFiles, String.format(Configuration.COMMIT_MESSAGE_DEVELOPMENT.get(), version)) != 0) {
+                printError("Git commit failed", null, ReleaseException.Kind.COMMAND);
+            }
+            commit = resolveGitRevision("HEAD");
+        }
+        out().println("done");
 
-        System.out.println("::::::: Development version update complete :::::::");
-        System.out.println("Please verify the changes and push them to the remote repository:");
-        System.out.println("git push origin " + Configuration.BRANCH_DEVELOP.get());
-        System.out.println(CONSOLE_SEPARATOR);
+        out().println("::::::: Development version update complete :::::::");
+        out().println("Please verify the changes and push them to the remote repository:");
+        out().println("git push origin " + Configuration.BRANCH_DEVELOP.get());
+        out().println(CONSOLE_SEPARATOR);
+        return new ReleaseResult(version, currentBranch, null, commit, pomFiles);
     }
 
     /**
@@ -470,8 +1631,9 @@ public class mvnrelease {
      *
      * @param version
      * @param interactive
+     * @return the updated branch, the created tag and the commit
      */
-    private static void runBugfix(String version, boolean interactive) {
+    private static ReleaseResult runBugfix(String version, boolean interactive) {
         // parse version for branch name
         var currentBranch = getCurrentBranch();
         if (!currentBranch.startsWith("release/")) {
@@ -480,172 +1642,3221 @@ public class mvnrelease {
         if (version.endsWith("-SNAPSHOT")) {
             printWarning("Bugfix version should not end with -SNAPSHOT suffix!", null);
         }
-        System.out.println(CONSOLE_SEPARATOR);
-        System.out.println("::::::: Performing bugfix version update :::::::");
-        System.out.println("\tCurrent branch name : " + currentBranch);
-        System.out.println("\tNew bugfix version: " + version);
-        System.out.println(CONSOLE_SEPARATOR);
+        out().println(CONSOLE_SEPARATOR);
+        out().println("::::::: Performing bugfix version update :::::::");
+        out().println("\tCurrent branch name : " + currentBranch);
+        out().println("\tNew bugfix version: " + version);
+        out().println(CONSOLE_SEPARATOR);
+        checkTagDoesNotExist(version);
         userConfirm(interactive);
 
-        runMavenVersionUpdate(version);
+        var pomFiles = runMavenVersionUpdate(version);
 
-        System.out.print("Running git... ");
-        runCommand(Configuration.COMMAND_GIT.get(), "commit","-am", String.format(Configuration.COMMIT_MESSAGE_BUGFIX.get(), version));
-        runCommand(Configuration.COMMAND_GIT.get(), "tag", String.format(Configuration.TAG_RELEASE_PATTERN.get(), version));
-        System.out.println("done");
+        out().print("Running git... ");
+        String commit;
+        if (context().nativeGit) {
+            commit = runNativeGitCommit(pomFiles, String.format(Configuration.COMMIT_MESSAGE_BUGFIX.get(), version), null,
+                    context().worktreeTagDeferred ? null : version);
+        } else {
+            if (runGitCommit(pomFiles, String.format(Configuration.COMMIT_MESSAGE_BUGFIX.get(), version)) != 0) {
+                printError("Git commit failed", null, ReleaseException.Kind.COMMAND);
+            }
+            commit = resolveGitRevision("HEAD");
+            if (!context().worktreeTagDeferred) {
+                runGitRefUpdate(createGitTagUpdate(version, commit));
+            }
+        }
+        out().println("done");
 
-        System.out.println("::::::: Bugfix version update complete :::::::");
-        System.out.println("Please verify the changes and push them to the remote repository:");
-        System.out.println("git push origin " + currentBranch);
-        System.out.println(CONSOLE_SEPARATOR);
+        out().println("::::::: Bugfix version update complete :::::::");
+        out().println("Please verify the changes and push them to the remote repository:");
+        out().println("git push origin " + currentBranch);
+        out().println(CONSOLE_SEPARATOR);
+        return new ReleaseResult(version, currentBranch, String.format(Configuration.TAG_RELEASE_PATTERN.get(), version),
+                commit, pomFiles);
     }
 
 
-    private static void runVersionUpdate(String version, boolean interactive) {
+    private static ReleaseResult runVersionUpdate(String version, boolean interactive) {
         // parse version for branch name
-        System.out.println(CONSOLE_SEPARATOR);
-        System.out.println("::::::: Performing version update :::::::");
-        System.out.println("\tNew version: " + version);
-        System.out.println(CONSOLE_SEPARATOR);
+        out().println(CONSOLE_SEPARATOR);
+        out().println("::::::: Performing version update :::::::");
+        out().println("\tNew version: " + version);
+        out().println(CONSOLE_SEPARATOR);
         userConfirm(interactive);
 
-        runMavenVersionUpdate(version);
+        var pomFiles = runMavenVersionUpdate(version);
 
-        System.out.println("::::::: Version update complete :::::::");
-        System.out.println(CONSOLE_SEPARATOR);
+        out().println("::::::: Version update complete :::::::");
+        out().println(CONSOLE_SEPARATOR);
+        return new ReleaseResult(version, null, null, null, pomFiles);
     }
 
-    public static void main(String[] args) {
-        System.out.println(CONSOLE_SEPARATOR);
-        System.out.println("MvnRelease script, v" + Configuration.APP_VERSION);
-        System.out.println("use --help for full usage information");
-        System.out.println(CONSOLE_SEPARATOR);
-
-        // Init..
-        System.out.println("Initializing...");
-        System.out.print("Checking maven... ");
-        int exitCode = runCommand(Configuration.COMMAND_MVN.get(), false, "--version");
-        if (exitCode != 0) {
-            printError("Maven is not installed or not found in PATH", null, true);
-        } else {
-            System.out.println("OK");
+    /**
+     * Runs the git-flow cycle at once: releases the version from the current branch and updates the branch
+     * to the next development version. Both run concurrently in temporary worktrees created from the same commit,
+     * they share tool checks and project information, see {@link #runInWorktree(Operation, String, boolean)}.
+     * The branch is moved to the development version only when both succeeded, files of the working directory
+     * are updated as well when the branch is checked out there.
+     *
+     * @param version release version, the development version is suggested from it
+     * @param interactive
+     * @return result of the release
+     */
+    private static ReleaseResult runCycle(String version, boolean interactive) {
+        var context = context();
+        var currentBranch = getCurrentBranch();
+        if (!currentBranch.equals(Configuration.BRANCH_DEVELOP.get())) {
+            printWarning("Release cycle should be run on " + Configuration.BRANCH_DEVELOP.get() + " branch!", null);
         }
-        System.out.print("Checking git... ");
-        exitCode = runCommand(Configuration.COMMAND_GIT.get(), false, "status");
-        if (exitCode != 0) {
-            printError("Git status failed - it's not installed or the repository doesn't exist", null, true);
-        } else {
-            System.out.println("OK");
+        if (version.endsWith("-SNAPSHOT")) {
+            printWarning("Release version should not end with -SNAPSHOT suffix!", null);
+        }
+        var developVersion = suggestVersion(Operation.DEV, new VersionInfo(version));
+        if (developVersion.isEmpty()) {
+            printError("Unable to suggest development version after " + version, null, ReleaseException.Kind.INVALID_REQUEST);
         }
-        System.out.println("Working directory: " + new File(Configuration.WORKING_DIR.get()).getAbsolutePath());
-        var mavenInfo = parsePom();
-        var versionInfo = new VersionInfo(mavenInfo.version);
-        System.out.println(mavenInfo);
-        System.out.println(CONSOLE_SEPARATOR);
+        var branchName = String.format(Configuration.BRANCH_RELEASE_PATTERN.get(), releaseBranchVersionFunction.apply(new VersionInfo(version)));
+        out().println(CONSOLE_SEPARATOR);
+        out().println("::::::: Performing release cycle :::::::");
+        out().println("\tCurrent branch name    : " + currentBranch);
+        out().println("\tRelease version        : " + version);
+        out().println("\tBranch to be created   : " + branchName);
+        out().println("\tNew development version: " + developVersion);
+        out().println(CONSOLE_SEPARATOR);
+        // both steps would fail on these, check them before anything is changed
+        if (gitRefExists("refs/heads/" + branchName)) {
+            printError("Branch " + branchName + " already exists", null, ReleaseException.Kind.CONFLICT);
+        }
+        checkTagDoesNotExist(version);
+        userConfirm(interactive);
 
-        // ...Init complete
-        // Read params...
+        var release = runWorktreeStep(context, Operation.RELEASE, version, currentBranch);
+        // the branch is moved only after the release succeeded
+        var developContext = context.fork(context.workingDir, context.out, context.err);
+        developContext.worktreeBranchDeferred = true;
+        var develop = runWorktreeStep(developContext, Operation.DEV, developVersion, currentBranch);
+        ReleaseException failure = null;
+        ReleaseResult releaseResult = null;
+        ReleaseResult developResult = null;
+        for (var step : List.of(release, develop)) {
+            try {
+                var result = join(step.result);
+                if (step == release) {
+                    releaseResult = result;
+                } else {
+                    developResult = result;
+                }
+            } catch (ReleaseException e) {
+                failure = failure != null ? failure : e;
+            }
+            out().print(step.log);
+        }
+        if (failure != null) {
+            printError("Release cycle failed: " + failure.getMessage(), null, failure.kind());
+        }
+        if (developResult.commit() != null && gitRefExists("refs/heads/" + currentBranch)) {
+            // the development version is committed on top of the commit the worktree was created from
+            updateWorktreeBranch(currentBranch, resolveGitRevision(developResult.commit() + "^"), developResult.commit(), null);
+        }
 
-        Operation operation = null;
-        String newVersion = "";
-        boolean interactive = false;
+        out().println("::::::: Release cycle complete :::::::");
+        out().println("Please verify the changes and push them to the remote repository:");
+        out().println("git push origin " + branchName + " " + currentBranch);
+        out().println(CONSOLE_SEPARATOR);
+        return releaseResult;
+    }
 
-        if (args.length == 0) {
-            interactive = true;
-            operation = askOperation();
-            newVersion = askVersion(suggestVersion(operation, versionInfo));
-        } else {
-            for (int i = 0; i < args.length; i++) {
-                if (args[i].equals("--debug")) {
-                    debugEnabled = true;
-                }
-                if (args[i].equals("--confirm")) {
-                    interactive = true;
-                }
-                if (args[i].equals("--help")) {
-                    printUsage(versionInfo);
-                    System.exit(0);
+    /**
+     * Starts the operation in a temporary worktree created from the branch, its output is collected.
+     * The branch is updated in the working directory as well when it's checked out there.
+     */
+    private static WorktreeStep runWorktreeStep(RunContext context, Operation operation, String version, String branch) {
+        var log = new StringBuffer();
+        var millis = new AtomicLong();
+        long start = System.nanoTime();
+        var stepContext = context.fork(context.workingDir,
+                new PrintStream(new ForwardingOutput(log::append), true, StandardCharsets.UTF_8),
+                new PrintStream(new ForwardingOutput(log::append), true, StandardCharsets.UTF_8));
+        stepContext.worktreeRef = branch;
+        stepContext.cleanTreeCheck = false;
+        var result = CompletableFuture.supplyAsync(() -> stepContext.call(() -> {
+            try {
+                return runOperation(operation, version, false);
+            } finally {
+                if (stepContext.gitSession != null) {
+                    stepContext.gitSession.close();
                 }
+                stepContext.out.flush();
+                stepContext.err.flush();
+            }
+        })).whenComplete((r, e) -> millis.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return new WorktreeStep(operation, version, branch, result, log, millis);
+    }
 
-                for (var op : Operation.values()) {
-                    if (args[i].equals(op.toString()) || args[i].equals(op.shortCut)) {
-                        if (i + 1 < args.length) {
-                            operation = op;
-                            newVersion = args[i + 1];
-                        } else {
-                            printError("Missing version argument for '" + op + "' operation", null, true);
-                        }
-                    }
+    /**
+     * Maintains compiled classes of this script, so the script doesn't have to be compiled on every run.
+     * Classes are cached in a jar in ~/.mvnrelease/launch/[source hash], so all checkouts of the same script share it,
+     * e.g. fresh checkouts on a CI agent. When run from source, .mvnrelease/mvnrelease(.cmd) launchers are written
+     * next to the script, a missing cache is compiled in the background first. The compilation doesn't delay the exit,
+     * the next run repeats it when it didn't finish. When run by a launcher and the script was changed since,
+     * the script is executed from source again, which refreshes the cache.
+     * @param args
+     */
+    private static void checkLaunchCache(String[] args) {
+        try {
+            var sourceProperty = System.getProperty("jdk.launcher.sourcefile");
+            if (sourceProperty != null) {
+                var source = Path.of(sourceProperty).toAbsolutePath();
+                var classesDir = getLaunchCacheRoot().resolve(hashSource(source));
+                if (Files.isDirectory(classesDir)) {
+                    Files.setLastModifiedTime(classesDir, FileTime.from(Instant.now()));
+                    writeLaunchers(source, classesDir);
+                } else {
+                    var compilation = new Thread(() -> compileLaunchCache(source, classesDir), "launch-cache");
+                    launchCacheCompilation = compilation;
+                    compilation.setPriority(Thread.MIN_PRIORITY);
+                    compilation.setDaemon(true);
+                    compilation.start();
                 }
+                return;
             }
-        }
-        // ...params read
-
-        // do the job
-        if (operation != null) {
-            switch (operation) {
-                case RELEASE -> runRelease(newVersion, interactive);
-                case DEV     -> runDevelop(newVersion, interactive);
-                case BUGFIX  -> runBugfix(newVersion, interactive);
-                case VERSION -> runVersionUpdate(newVersion, interactive);
+            var launcherSource = System.getProperty(LAUNCH_SOURCE_PROPERTY);
+            if (launcherSource == null) {
+                return; // not started by a launcher
             }
+            var source = Path.of(launcherSource);
+            var classesDir = getLaunchCacheDir();
+            if (Files.isRegularFile(source) && !hashSource(source).equals(classesDir.getFileName().toString())) {
+                // script was changed, run it from source, it compiles a new cache
+                var command = new ArrayList<String>();
+                command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+                command.add(source.toString());
+                command.addAll(List.of(args));
+                System.exit(new ProcessBuilder(command).inheritIO().start().waitFor());
+            }
+            // caches which are not used are pruned, see pruneLaunchCache(Path)
+            Files.setLastModifiedTime(classesDir, FileTime.from(Instant.now()));
+        } catch (Exception e) {
+            printWarning("Launch cache check failed", e);
         }
     }
 
     /**
-     * List of possible operations this script can perform.
+     * @return directory with launch caches of all versions of the script, shared by all checkouts
      */
-    private enum Operation {
-        RELEASE("release - performs a release and creates a release branch"),
-        DEV(    "dev     - create next development version (runs on develop branch only)"),
-        BUGFIX( "bugfix  - create bugfix version (should be run on release/ branch), doesn't create a new branch"),
-        VERSION("version - replaces the version in pom files and does nothing else");
+    private static Path getLaunchCacheRoot() {
+        return Path.of(System.getProperty("user.home"), CACHE_DIR, LAUNCH_CACHE_DIR);
+    }
 
-        private String shortCut;
-        private String help;
+    /**
+     * @return directory of the jar (or classes) this script is running from
+     */
+    private static Path getLaunchCacheDir() throws URISyntaxException {
+        var location = Path.of(mvnrelease.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        return Files.isDirectory(location) ? location : location.getParent();
+    }
 
-        Operation(String help) {
-            this.shortCut = name().substring(0, 1).toLowerCase();
-            this.help = help;
+    /**
+     * @return short SHA-256 hash of the script source
+     */
+    private static String hashSource(Path source) throws IOException, NoSuchAlgorithmException {
+        var digest = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(source));
+        return HexFormat.of().formatHex(digest, 0, 8);
+    }
+
+    /**
+     * Deletes the directory with all its content.
+     */
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (var paths = Files.walk(dir)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
         }
+    }
 
-        @Override
-        public String toString() {
-            return name().toLowerCase();
+    /**
+     * Compiles the script into the classes directory and writes the launchers pointing to it.
+     */
+    private static void compileLaunchCache(Path source, Path classesDir) {
+        try {
+            var compiler = ToolProvider.getSystemJavaCompiler();
+            if (compiler == null) {
+                return;
+            }
+            Files.createDirectories(classesDir.getParent());
+            var tempDir = Files.createTempDirectory(classesDir.getParent(), "tmp-");
+            var compiledDir = tempDir.resolve("classes");
+            var compilerOutput = new ByteArrayOutputStream();
+            if (compiler.run(null, compilerOutput, compilerOutput, "-nowarn", "-d", compiledDir.toString(), source.toString()) != 0) {
+                printWarning("Launch cache compilation failed: " + compilerOutput, null);
+                deleteRecursively(tempDir);
+                return;
+            }
+            // class data sharing works with jar files only
+            try (var jar = new JarOutputStream(Files.newOutputStream(tempDir.resolve(LAUNCH_JAR)));
+                 var classFiles = Files.walk(compiledDir)) {
+                for (var classFile : classFiles.filter(Files::isRegularFile).sorted().toList()) {
+                    jar.putNextEntry(new JarEntry(compiledDir.relativize(classFile).toString().replace(File.separatorChar, '/')));
+                    jar.write(Files.readAllBytes(classFile));
+                    jar.closeEntry();
+                }
+            }
+            deleteRecursively(compiledDir);
+            try {
+                Files.move(tempDir, classesDir, StandardCopyOption.ATOMIC_MOVE);
+                pruneLaunchCache(classesDir);
+            } catch (IOException e) {
+                // compiled concurrently by another run
+                deleteRecursively(tempDir);
+            }
+            writeLaunchers(source, classesDir);
+        } catch (Exception e) {
+            printWarning("Launch cache compilation failed", e);
         }
     }
 
     /**
-     * MavenInfo class is used to parse and store Maven project information.
+     * Deletes caches which were not used for 30 days, other checkouts may still use older versions of the script.
+     * Launchers of a deleted cache run the script from source. Temporary directories are deleted when they are
+     * older than an hour, younger ones may be still compiled.
      */
-    private record MavenInfo(String groupId, String artifactId, String version, String name) {
-        @Override
-        public String toString() {
-            return "Project information: " + groupId + ":" + artifactId + ": " + version + " (" + name + ")";
+    private static void pruneLaunchCache(Path classesDir) throws IOException {
+        var staleCache = FileTime.from(Instant.now().minus(Duration.ofDays(30)));
+        var staleTemp = FileTime.from(Instant.now().minus(Duration.ofHours(1)));
+        try (var dirs = Files.list(classesDir.getParent())) {
+            for (var dir : dirs.filter(Files::isDirectory).toList()) {
+                var stale = dir.getFileName().toString().startsWith("tmp-") ? staleTemp : staleCache;
+                if (dir.equals(classesDir) || Files.getLastModifiedTime(dir).compareTo(stale) > 0) {
+                    continue;
+                }
+                try {
+                    deleteRecursively(dir);
+                } catch (IOException e) {
+                    // still used by a running process on windows, deleted next time
+                }
+            }
         }
     }
 
     /**
-     * VersionInfo class is used to parse and store version information.
+     * Writes .mvnrelease/mvnrelease(.cmd) launchers next to the script, they start the cached classes
+     * or the script from source when the cache was pruned. The class data sharing archive is used when it was trained,
+     * see {@link #trainCds()}. Launchers are rewritten only when they change, other runs may be starting them.
      */
-    private static class VersionInfo {
-        String major;
-        String minor;
-        String patch;
-        String suffix;
-        VersionInfo(String version) {
-            // Split the numeric part into major, minor, and patch
-            String[] parts = version.split("-");
-            String numericPart = parts[0]; // "1.0.0"
-            suffix = parts.length > 1 ? parts[1] : ""; // "SNAPSHOT"
+    private static void writeLaunchers(Path source, Path classesDir) throws IOException {
+        var launcherDir = source.resolveSibling(CACHE_DIR);
+        Files.createDirectories(launcherDir);
+        if (!Files.isRegularFile(launcherDir.resolve(".gitignore"))) {
+            Files.writeString(launcherDir.resolve(".gitignore"), "*\n");
+        }
+        var jar = classesDir.resolve(LAUNCH_JAR);
+        var archive = classesDir.resolve(CDS_ARCHIVE);
+        var cdsOptions = Files.isRegularFile(archive)
+                ? "-XX:SharedArchiveFile=\"" + archive + "\" -Xshare:auto -Xlog:cds=off,cds+dynamic=off "
+                : "";
+        var shellSource = "\"$(dirname \"$0\")/../" + source.getFileName() + "\"";
+        writeLauncher(launcherDir.resolve("mvnrelease"), "#!/bin/sh\n"
+                + "if [ -f \"" + jar + "\" ]; then\n"
+                + "    exec java " + cdsOptions + "-D" + LAUNCH_SOURCE_PROPERTY + "=" + shellSource
+                + " -cp \"" + jar + "\" " + mvnrelease.class.getName() + " \"$@\"\n"
+                + "fi\n"
+                + "exec java " + shellSource + " \"$@\"\n");
+        var cmdSource = "\"%~dp0..\\" + source.getFileName() + "\"";
+        writeLauncher(launcherDir.resolve("mvnrelease.cmd"), "@echo off\r\n"
+                + "if not exist \"" + jar + "\" goto source\r\n"
+                + "java " + cdsOptions + "-D" + LAUNCH_SOURCE_PROPERTY + "=" + cmdSource
+                + " -cp \"" + jar + "\" " + mvnrelease.class.getName() + " %*\r\n"
+                + "exit /b %errorlevel%\r\n"
+                + ":source\r\n"
+                + "java " + cmdSource + " %*\r\n");
+    }
 
-            String[] numbers = numericPart.split("\\.");
-            major = numbers[0];
-            minor = numbers[1];
-            if (numbers.length < 3) {
-                patch = "0"; // default patch version if not specified
+    /**
+     * Replaces the launcher atomically when its content is different.
+     */
+    private static void writeLauncher(Path launcher, String content) throws IOException {
+        if (Files.isRegularFile(launcher) && Files.readString(launcher).equals(content)) {
+            return;
+        }
+        var temp = Files.createTempFile(launcher.getParent(), "tmp-", null);
+        Files.writeString(temp, content);
+        temp.toFile().setExecutable(true);
+        Files.move(temp, launcher, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Records a dynamic AppCDS archive from a training run of the cached classes, the launchers use it afterwards.
+     * The training run loads what a usual run needs without changing anything, see {@link #runCdsTraining()}.
+     */
+    private static void trainCds() {
+        try {
+            var sourceProperty = System.getProperty("jdk.launcher.sourcefile", System.getProperty(LAUNCH_SOURCE_PROPERTY));
+            if (sourceProperty == null) {
+                throw new IOException("the script must be run from source or by its launcher");
+            }
+            var source = Path.of(sourceProperty).toAbsolutePath();
+            var classesDir = getLaunchCacheRoot().resolve(hashSource(source));
+            if (launchCacheCompilation != null) {
+                launchCacheCompilation.join();
+            }
+            if (!Files.isDirectory(classesDir)) {
+                compileLaunchCache(source, classesDir);
+            }
+            out().print("Training class data sharing archive... ");
+            var archive = classesDir.resolve(CDS_ARCHIVE);
+            Files.deleteIfExists(archive);
+            var process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-XX:ArchiveClassesAtExit=" + archive, "-Xlog:cds=off,cds+dynamic=off",
+                    "-cp", classesDir.resolve(LAUNCH_JAR).toString(), mvnrelease.class.getName(), "--cds-training")
+                    .directory(workingDir())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (process.waitFor() != 0 || !Files.isRegularFile(archive)) {
+                throw new IOException("training run failed");
+            }
+            writeLaunchers(source, classesDir);
+            out().println("done");
+            out().println("Archive: " + archive);
+        } catch (Exception e) {
+            printError("Class data sharing archive training failed", e, true);
+        }
+    }
+
+    /**
+     * Representative run for the class data sharing archive. It goes through startup, pom parsing,
+     * version update planning, git reads and process execution, nothing is written.
+     */
+    private static void runCdsTraining() {
+        requireCapabilities(EnumSet.of(Capability.POM));
+        try {
+            var reactor = PomReactor.load(new File(workingDir(), "pom.xml"));
+            reactor.planVersionUpdate(suggestVersion(Operation.RELEASE, new VersionInfo(context().mavenInfo.version)));
+        } catch (Exception e) {
+            printWarning("Version update planning failed", e);
+        }
+        var repository = GitRepository.find(workingDir());
+        if (repository != null) {
+            getCurrentBranch();
+            gitRefExists("refs/heads/" + Configuration.BRANCH_DEVELOP.get());
+        }
+        probeTool(Configuration.COMMAND_GIT.get(), "--version");
+        runCommand(Configuration.COMMAND_GIT.get(), false, "--version");
+    }
+
+    public static void main(String[] args) {
+        if (Boolean.parseBoolean(Configuration.LAUNCH_CACHE.get())) {
+            checkLaunchCache(args);
+        }
+        var argList = new ArrayList<>(List.of(args));
+        if (argList.remove("--client")) {
+            int exitCode = runClient(argList);
+            if (exitCode >= 0) {
+                System.exit(exitCode);
+            }
+            printWarning("Daemon is not running, the operation runs locally", null);
+        }
+        int exitCode = switch (argList.isEmpty() ? "" : argList.get(0)) {
+            case "daemon" -> runDaemon(argList.contains("--debug"));
+            case "batch" -> runBatch(argList.subList(1, argList.size()));
+            case "train" -> runTrain(argList.subList(1, argList.size()));
+            case "bugfix-all" -> runBugfixAll(argList.subList(1, argList.size()));
+            case "prewarm" -> runPrewarm(argList.subList(1, argList.size()));
+            default -> run(argList.toArray(new String[0]));
+        };
+        if (exitCode != 0) {
+            System.exit(exitCode);
+        }
+    }
+
+    private static void printBanner() {
+        out().println(CONSOLE_SEPARATOR);
+        out().println("MvnRelease script, v" + Configuration.APP_VERSION);
+        out().println("use --help for full usage information");
+        out().println(CONSOLE_SEPARATOR);
+    }
+
+    /**
+     * Runs the script with given arguments in the current context.
+     * @param args
+     * @return exit code
+     */
+    private static int run(String[] args) {
+        var context = context();
+        try {
+            printBanner();
+
+            // Read params...
+
+            Operation operation = null;
+            String newVersion = "";
+            boolean interactive = false;
+            boolean help = false;
+
+            for (int i = 0; i < args.length; i++) {
+                context.applyOption(args[i]);
+                if (args[i].equals("--confirm")) {
+                    interactive = true;
+                }
+                if (args[i].equals("--help")) {
+                    help = true;
+                }
+                if (args[i].equals("--train-cds")) {
+                    trainCds();
+                    return 0;
+                }
+                if (args[i].equals("--cds-training")) {
+                    runCdsTraining();
+                    return 0;
+                }
+
+                for (var op : Operation.values()) {
+                    if (args[i].equals(op.toString()) || args[i].equals(op.shortCut)) {
+                        if (i + 1 < args.length) {
+                            operation = op;
+                            newVersion = args[i + 1];
+                        } else {
+                            printError("Missing version argument for '" + op + "' operation", null, ReleaseException.Kind.INVALID_REQUEST);
+                        }
+                    }
+                }
+            }
+            // ...params read
+
+            // Init only what is needed..
+            if (help) {
+                // suggestions are printed only when there is a pom file to suggest from
+                VersionInfo versionInfo = null;
+                if (new File(workingDir(), "pom.xml").isFile()) {
+                    requireCapabilities(EnumSet.of(Capability.POM));
+                    versionInfo = new VersionInfo(context.mavenInfo.version);
+                }
+                printUsage(versionInfo);
+                return 0;
+            }
+            if (context.embedded && (interactive || operation == null)) {
+                printError("Daemon runs only operations with a version and without confirmation", null, ReleaseException.Kind.INVALID_REQUEST);
+            }
+            if (args.length == 0) {
+                interactive = true;
+                operation = askOperation();
+                requireCapabilities(operation.requiredCapabilities());
+                newVersion = askVersion(suggestVersion(operation, new VersionInfo(context.mavenInfo.version)));
+            }
+
+            // do the job
+            if (operation != null) {
+                runOperation(operation, newVersion, interactive);
+            }
+            return 0;
+        } catch (ReleaseException e) {
+            return 1;
+        } finally {
+            if (context.gitSession != null && !context.embedded) {
+                context.gitSession.close();
+            }
+        }
+    }
+
+    /**
+     * Initializes only what the operation needs and runs it in the current context.
+     * @param operation
+     * @param version
+     * @param interactive
+     * @return result of the operation
+     */
+    private static ReleaseResult runOperation(Operation operation, String version, boolean interactive) {
+        if (context().worktreeRef != null && operation != Operation.CYCLE) {
+            if (operation.requiredCapabilities().contains(Capability.GIT)) {
+                requireCapabilities(EnumSet.of(Capability.GIT));
+                return runInWorktree(operation, version, interactive);
+            }
+            printWarning("Operation " + operation + " doesn't commit anything, it runs in the working directory", null);
+        }
+        requireCapabilities(operation.requiredCapabilities());
+        if (context().cleanTreeCheck && operation.requiredCapabilities().contains(Capability.GIT)) {
+            checkCleanTree();
+        }
+        if (context().nativeGit && operation.requiredCapabilities().contains(Capability.GIT) && operation != Operation.CYCLE) {
+            checkNativeGit();
+        }
+        return switch (operation) {
+            case RELEASE -> runRelease(version, interactive);
+            case DEV     -> runDevelop(version, interactive);
+            case BUGFIX  -> runBugfix(version, interactive);
+            case VERSION -> runVersionUpdate(version, interactive);
+            case CYCLE   -> runCycle(version, interactive);
+        };
+    }
+
+    /**
+     * Runs the operation in a temporary worktree created from the ref, the working directory is not used by the operation.
+     * The commit is created on detached HEAD of the worktree, then the branch the worktree was created from
+     * is moved to it only if it still points to the original commit. When the branch is checked out in the working
+     * directory, its index and files are moved to the new commit too. Release creates its branch and tag as usual.
+     * The worktree is removed afterwards, also when the operation fails.
+     * @param operation
+     * @param version
+     * @param interactive
+     * @return result of the operation
+     */
+    private static ReleaseResult runInWorktree(Operation operation, String version, boolean interactive) {
+        var context = context();
+        var ref = context.worktreeRef.isEmpty() ? getCurrentBranch() : context.worktreeRef;
+        var branch = ref.startsWith("refs/heads/") ? ref.substring("refs/heads/".length()) : ref;
+        if (!gitRefExists("refs/heads/" + branch)) {
+            branch = null;
+        }
+        var startCommit = resolveGitRevision(branch != null ? "refs/heads/" + branch : ref);
+        var updateCheckout = branch != null && branch.equals(getCurrentBranch());
+        if (branch != null && operation != Operation.RELEASE && !updateCheckout) {
+            warnIfCheckedOut(branch);
+        }
+
+        Path worktree = null;
+        try {
+            worktree = Files.createTempDirectory("mvnrelease-worktree-");
+        } catch (IOException e) {
+            printError("Unable to create worktree directory", e, ReleaseException.Kind.ENVIRONMENT);
+        }
+        out().print("Creating worktree from " + ref + "... ");
+        if (runCommand(Configuration.COMMAND_GIT.get(), "worktree", "add", "--detach", worktree.toString(), startCommit) != 0) {
+            try {
+                deleteRecursively(worktree);
+            } catch (IOException e) {
+                printWarning("Unable to delete " + worktree, e);
+            }
+            printError("Unable to create worktree " + worktree, null, ReleaseException.Kind.COMMAND);
+        }
+        out().println("done");
+        var worktreeContext = context.fork(worktree.toFile(), context.out, context.err);
+        worktreeContext.worktreeRef = null;
+        worktreeContext.worktreeBranch = branch;
+        worktreeContext.cleanTreeCheck = false;
+        worktreeContext.worktreeTagDeferred = operation == Operation.BUGFIX && branch != null;
+        try {
+            var result = worktreeContext.call(() -> runOperation(operation, version, interactive));
+            if (operation != Operation.RELEASE && branch != null && result.commit() != null && !context.worktreeBranchDeferred) {
+                updateWorktreeBranch(branch, startCommit, result.commit(), worktreeContext.worktreeTagDeferred ? version : null);
+            }
+            return result;
+        } finally {
+            if (worktreeContext.gitSession != null) {
+                worktreeContext.gitSession.close();
+            }
+            if (runCommand(Configuration.COMMAND_GIT.get(), "worktree", "remove", "--force", worktree.toString()) != 0) {
+                printWarning("Unable to remove worktree " + worktree + ", remove it and run git worktree prune", null);
+            }
+        }
+    }
+
+    /**
+     * Moves the branch to the commit created in a temporary worktree, the tag is created in the same transaction.
+     * Index and files of the working directory are moved as well when the branch is checked out there.
+     * @param startCommit commit the worktree was created from, the update fails when the branch doesn't point to it
+     * @param tagVersion version to tag the commit with, null for no tag
+     */
+    private static void updateWorktreeBranch(String branch, String startCommit, String commit, String tagVersion) {
+        var moved = !commit.equals(startCommit);
+        var updates = new ArrayList<String>();
+        if (moved) {
+            // fails when the branch was moved in the meantime, the tag isn't created then
+            updates.add("update refs/heads/" + branch + " " + commit + " " + startCommit);
+        }
+        if (tagVersion != null) {
+            updates.add(createGitTagUpdate(tagVersion, commit));
+        }
+        if (!updates.isEmpty()) {
+            runGitRefUpdate(updates.toArray(new String[0]));
+        }
+        // two-tree merge moves the index and the files to the new commit, local changes are kept
+        if (moved && branch.equals(getCurrentBranch())
+                && runCommand(Configuration.COMMAND_GIT.get(), "read-tree", "-m", "-u", startCommit, commit) != 0) {
+            printWarning("Unable to update files of " + branch + " in " + workingDir() + ", they show the new version as reverted", null);
+        }
+    }
+
+    /**
+     * Warns when the branch is checked out in any worktree, its index and files are not updated with the branch.
+     */
+    private static void warnIfCheckedOut(String branch) {
+        var output = new OutputSink(Integer.MAX_VALUE);
+        if (runCommand(Configuration.COMMAND_GIT.get(), false, output, "worktree", "list", "--porcelain") != 0) {
+            return;
+        }
+        String worktree = null;
+        for (var line : output.lines()) {
+            if (line.startsWith("worktree ")) {
+                worktree = line.substring("worktree ".length());
+            } else if (line.equals("branch refs/heads/" + branch)) {
+                printWarning("Branch " + branch + " is checked out in " + worktree
+                        + ", its files will show the new version as reverted until they are updated", null);
+            }
+        }
+    }
+
+    /**
+     * Creates an engine which runs operations in-process, e.g. in a service which has the script on its classpath.
+     * @param workingDir directory with pom.xml
+     * @param listener receives output of the operations
+     * @param options command-line options of the operations, e.g. --native-git
+     * @return the engine, it should be closed when it's not needed anymore
+     */
+    public static ReleaseEngine createEngine(File workingDir, ReleaseListener listener, String... options) {
+        return new Engine(workingDir, listener, options);
+    }
+
+    /**
+     * Runs operations listed in the manifest concurrently, each repository in its own context.
+     * Manifest lines contain working directory, operation and version separated by whitespace, see {@link #readManifest(String, List)}.
+     * Failure of a repository doesn't stop the others, output of each repository is printed when it finishes.
+     * @param args manifest file and options applied to all operations
+     * @return exit code, 1 when any operation failed
+     */
+    private static int runBatch(List<String> args) {
+        printBanner();
+        try {
+            var options = args.stream().filter(arg -> arg.startsWith("--")).toList();
+            var jobs = new ArrayList<BatchJob>();
+            for (var line : readManifest("batch", args)) {
+                var operation = line.values.size() == 2 ? Operation.find(line.values.get(0)) : null;
+                if (operation == null) {
+                    printError("Invalid manifest line " + line.number + ": expected <directory> <operation> <version>",
+                            null, ReleaseException.Kind.INVALID_REQUEST);
+                }
+                jobs.add(new BatchJob(line.workingDir, operation, line.values.get(1), Map.of()));
+            }
+            int parallelism = Math.max(1, Integer.parseInt(Configuration.BATCH_PARALLELISM.get()));
+            out().println("Running " + jobs.size() + " operations, " + parallelism + " at once");
+            out().println(CONSOLE_SEPARATOR);
+
+            // jobs of the same repository share the engine, so they run one after another
+            var engines = new HashMap<File, Engine>();
+            for (var job : jobs) {
+                engines.computeIfAbsent(job.workingDir, dir -> new Engine(dir, text -> { }, options.toArray(new String[0])));
+            }
+            var executor = Executors.newFixedThreadPool(parallelism);
+            var results = new ArrayList<CompletableFuture<BatchResult>>();
+            var console = context();
+            for (var job : jobs) {
+                results.add(CompletableFuture.supplyAsync(() -> runBatchJob(job, engines.get(job.workingDir), console), executor));
+            }
+            var summary = results.stream().map(CompletableFuture::join).toList();
+            executor.shutdown();
+            engines.values().forEach(Engine::close);
+            printBatchSummary("Batch summary", summary);
+            return summary.stream().allMatch(result -> result.failure == null) ? 0 : 1;
+        } catch (ReleaseException e) {
+            return 1;
+        } catch (IllegalArgumentException e) {
+            printError("Invalid batch options", e);
+            return 1;
+        }
+    }
+
+    /**
+     * Reads the manifest given in arguments of batch or train operation. Lines start with working directory,
+     * relative directories are resolved against the manifest location, empty lines and # comments are skipped.
+     * @param operation name of the operation for error messages
+     * @param args the first argument which is not an option is the manifest file
+     * @return manifest lines
+     */
+    private static List<ManifestLine> readManifest(String operation, List<String> args) {
+        var manifestArg = args.stream().filter(arg -> !arg.startsWith("--")).findFirst();
+        if (manifestArg.isEmpty()) {
+            printError("Missing manifest argument for '" + operation + "' operation", null, ReleaseException.Kind.INVALID_REQUEST);
+        }
+        var manifest = new File(workingDir(), manifestArg.get());
+        var result = new ArrayList<ManifestLine>();
+        try {
+            var lines = Files.readAllLines(manifest.toPath());
+            for (int i = 0; i < lines.size(); i++) {
+                var line = lines.get(i).trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                var parts = List.of(line.split("\\s+"));
+                var directory = new File(parts.get(0));
+                if (!directory.isAbsolute()) {
+                    directory = new File(manifest.getAbsoluteFile().getParentFile(), parts.get(0));
+                }
+                result.add(new ManifestLine(i + 1, directory.getCanonicalFile(), parts.subList(1, parts.size())));
+            }
+        } catch (IOException e) {
+            printError("Unable to read manifest " + manifest.getPath(), e, ReleaseException.Kind.INVALID_REQUEST);
+        }
+        return result;
+    }
+
+    /**
+     * Runs one operation of the batch, its output is collected and printed to the console when it finishes.
+     */
+    private static BatchResult runBatchJob(BatchJob job, Engine engine, RunContext console) {
+        var log = new StringBuffer();
+        long start = System.nanoTime();
+        ReleaseResult result = null;
+        ReleaseException failure = null;
+        try {
+            result = engine.run(job.operation, job.version, log::append, job.dependencyVersions);
+        } catch (ReleaseException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new ReleaseException(ReleaseException.Kind.FAILED, String.valueOf(e.getMessage()), e);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        synchronized (console) {
+            console.out.println("::::::: " + job.workingDir + " (" + job.operation + " " + job.version + ") :::::::");
+            console.out.print(log);
+            console.out.println(CONSOLE_SEPARATOR);
+        }
+        return new BatchResult(job, result, failure == null ? null : failure.kind(),
+                failure == null ? null : failure.getMessage(), millis);
+    }
+
+    private static void printBatchSummary(String title, List<BatchResult> results) {
+        var header = List.of("Repository", "Operation", "Version", "Result", "Time", "Details");
+        var rows = new ArrayList<List<String>>();
+        rows.add(header);
+        for (var result : results) {
+            String details;
+            if (result.failure != null) {
+                details = result.message;
+            } else if (result.result.branch() == null) {
+                details = "";
             } else {
-                patch = numbers[2];
+                details = result.result.branch() + (result.result.tag() != null ? ", tag " + result.result.tag() : "");
+            }
+            rows.add(List.of(result.job.workingDir.getPath(), result.job.operation.toString(), result.job.version,
+                    result.failure == null ? "OK" : "FAILED (" + result.failure + ")", result.millis + " ms", details));
+        }
+        var widths = new int[header.size()];
+        for (var row : rows) {
+            for (int i = 0; i < row.size(); i++) {
+                widths[i] = Math.max(widths[i], row.get(i).length());
+            }
+        }
+        out().println("::::::: " + title + " :::::::");
+        for (var row : rows) {
+            var line = new StringBuilder();
+            for (int i = 0; i < row.size(); i++) {
+                line.append(String.format("%-" + widths[i] + "s", row.get(i))).append(i + 1 < row.size() ? " | " : "");
+            }
+            out().println(line.toString().stripTrailing());
+        }
+        long failed = results.stream().filter(result -> result.failure != null).count();
+        out().println((results.size() - failed) + " succeeded, " + failed + " failed");
+        out().println(CONSOLE_SEPARATOR);
+    }
+
+    /**
+     * Releases repositories which depend on each other's artifacts. Dependencies between the repositories are read
+     * from their poms and the repositories are released in waves, each wave depends only on the previous ones
+     * and all repositories of a wave are released concurrently. SNAPSHOT references to artifacts released
+     * by previous waves are updated to the released versions in the release commit.
+     * Manifest lines contain working directory and optionally the release version, it's suggested from the pom otherwise.
+     * @param args manifest file and options applied to all releases
+     * @return exit code, 1 when any release failed
+     */
+    private static int runTrain(List<String> args) {
+        printBanner();
+        try {
+            var options = args.stream().filter(arg -> arg.startsWith("--")).toArray(String[]::new);
+            var projects = new LinkedHashMap<File, TrainProject>();
+            var owners = new HashMap<String, File>();
+            for (var line : readManifest("train", args)) {
+                if (line.values.size() > 1) {
+                    printError("Invalid manifest line " + line.number + ": expected <directory> [version]", null,
+                            ReleaseException.Kind.INVALID_REQUEST);
+                }
+                PomReactor reactor = null;
+                try {
+                    reactor = PomReactor.load(new File(line.workingDir, "pom.xml"));
+                } catch (Exception e) {
+                    printError("Unable to read pom files of " + line.workingDir, e, ReleaseException.Kind.ENVIRONMENT);
+                }
+                var version = line.values.isEmpty()
+                        ? suggestVersion(Operation.RELEASE, reactor.poms.get(0).version())
+                        : line.values.get(0);
+                if (version.isEmpty()) {
+                    printError("Invalid manifest line " + line.number + ": no version given and none can be suggested from version "
+                            + reactor.poms.get(0).version() + " of " + line.workingDir, null, ReleaseException.Kind.INVALID_REQUEST);
+                }
+                var project = new TrainProject(line.workingDir, version, reactor.artifacts(), reactor.references());
+                for (var artifact : project.artifacts) {
+                    var owner = owners.putIfAbsent(artifact, project.workingDir);
+                    if (owner != null && !owner.equals(project.workingDir)) {
+                        printError("Artifact " + artifact + " is built by " + owner + " and " + project.workingDir, null,
+                                ReleaseException.Kind.CONFLICT);
+                    }
+                }
+                projects.put(project.workingDir, project);
+            }
+
+            // repositories each repository depends on
+            var upstream = new HashMap<File, Set<File>>();
+            for (var project : projects.values()) {
+                var dependencies = new LinkedHashSet<File>();
+                for (var reference : project.references) {
+                    var owner = owners.get(reference);
+                    if (owner != null && !owner.equals(project.workingDir)) {
+                        dependencies.add(owner);
+                    }
+                }
+                upstream.put(project.workingDir, dependencies);
+            }
+            var waves = new ArrayList<List<TrainProject>>();
+            var planned = new HashSet<File>();
+            while (planned.size() < projects.size()) {
+                var wave = projects.values().stream()
+                        .filter(project -> !planned.contains(project.workingDir) && planned.containsAll(upstream.get(project.workingDir)))
+                        .toList();
+                if (wave.isEmpty()) {
+                    var cycle = projects.keySet().stream().filter(dir -> !planned.contains(dir)).toList();
+                    printError("Repositories depend on each other: " + cycle, null, ReleaseException.Kind.CONFLICT);
+                }
+                waves.add(wave);
+                wave.forEach(project -> planned.add(project.workingDir));
+            }
+            for (int i = 0; i < waves.size(); i++) {
+                out().println("Wave " + (i + 1) + ":");
+                for (var project : waves.get(i)) {
+                    out().println("\t" + project.workingDir + " " + project.version
+                            + (upstream.get(project.workingDir).isEmpty() ? "" : " (after " + upstream.get(project.workingDir).stream()
+                                    .map(File::getName).collect(Collectors.joining(", ")) + ")"));
+                }
+            }
+            out().println(CONSOLE_SEPARATOR);
+
+            var engines = new HashMap<File, Engine>();
+            for (var project : projects.values()) {
+                engines.put(project.workingDir, new Engine(project.workingDir, text -> { }, options));
+            }
+            var console = context();
+            var releasedVersions = new HashMap<String, String>();
+            var summary = new ArrayList<BatchResult>();
+            for (int i = 0; i < waves.size(); i++) {
+                var wave = waves.get(i);
+                var dependencyVersions = Map.copyOf(releasedVersions);
+                var executor = Executors.newFixedThreadPool(wave.size());
+                var results = new ArrayList<CompletableFuture<BatchResult>>();
+                for (var project : wave) {
+                    var job = new BatchJob(project.workingDir, Operation.RELEASE, project.version, dependencyVersions);
+                    results.add(CompletableFuture.supplyAsync(() -> runBatchJob(job, engines.get(job.workingDir()), console), executor));
+                }
+                var waveSummary = results.stream().map(CompletableFuture::join).toList();
+                executor.shutdown();
+                summary.addAll(waveSummary);
+                if (waveSummary.stream().anyMatch(result -> result.failure != null)) {
+                    var remaining = waves.subList(i + 1, waves.size()).stream().flatMap(List::stream)
+                            .map(project -> project.workingDir.getPath()).toList();
+                    if (!remaining.isEmpty()) {
+                        printError("Release train stopped after wave " + (i + 1) + ", not released: " + String.join(", ", remaining), null);
+                    }
+                    break;
+                }
+                wave.forEach(project -> project.artifacts.forEach(artifact -> releasedVersions.put(artifact, project.version)));
+            }
+            engines.values().forEach(Engine::close);
+            printBatchSummary("Train summary", summary);
+            return summary.size() == projects.size() && summary.stream().allMatch(result -> result.failure == null) ? 0 : 1;
+        } catch (ReleaseException e) {
+            return 1;
+        } catch (IllegalArgumentException e) {
+            printError("Invalid train options", e);
+            return 1;
+        }
+    }
+
+    /**
+     * Creates the next bugfix version on every release branch. Release branches are found by BRANCH_RELEASE_PATTERN,
+     * the next version is suggested from the pom of each branch which is read from git without checking it out.
+     * Bugfixes run concurrently, each in a temporary worktree, see {@link #runInWorktree(Operation, String, boolean)}.
+     * @param args options applied to all bugfixes
+     * @return exit code, 1 when any bugfix failed
+     */
+    private static int runBugfixAll(List<String> args) {
+        var context = context();
+        try {
+            printBanner();
+            boolean interactive = false;
+            for (var arg : args) {
+                if (arg.equals("--confirm")) {
+                    interactive = true;
+                } else if (!context.applyOption(arg)) {
+                    printError("Unknown option " + arg, null, ReleaseException.Kind.INVALID_REQUEST);
+                }
+            }
+            requireCapabilities(EnumSet.of(Capability.GIT));
+
+            var bugfixes = new LinkedHashMap<String, String>();
+            var branches = listReleaseBranches();
+            var branchPoms = readPoms(branches);
+            for (var ref : branches) {
+                var branch = ref.substring("refs/heads/".length());
+                var branchInfo = branchPoms.get(ref);
+                var version = branchInfo == null ? "" : suggestVersion(Operation.BUGFIX, branchInfo.version);
+                if (version.isEmpty()) {
+                    printWarning("Skipping " + branch + ", no bugfix version can be suggested from its version "
+                            + (branchInfo == null ? null : branchInfo.version), null);
+                } else {
+                    bugfixes.put(branch, version);
+                }
+            }
+            if (bugfixes.isEmpty()) {
+                printError("No release branch found", null, ReleaseException.Kind.CONFLICT);
+            }
+            out().println("::::::: Performing bugfix version update on all release branches :::::::");
+            bugfixes.forEach((branch, version) -> out().println("\t" + branch + ": " + version));
+            out().println(CONSOLE_SEPARATOR);
+            userConfirm(interactive);
+
+            var steps = new ArrayList<WorktreeStep>();
+            bugfixes.forEach((branch, version) -> steps.add(runWorktreeStep(context, Operation.BUGFIX, version, branch)));
+            var summary = new ArrayList<BatchResult>();
+            for (var step : steps) {
+                ReleaseResult result = null;
+                ReleaseException failure = null;
+                try {
+                    result = join(step.result);
+                } catch (ReleaseException e) {
+                    failure = e;
+                }
+                out().println("::::::: " + step.branch + " (" + step.operation + " " + step.version + ") :::::::");
+                out().print(step.log);
+                out().println(CONSOLE_SEPARATOR);
+                summary.add(new BatchResult(new BatchJob(workingDir().toPath().toAbsolutePath().normalize().toFile(), step.operation, step.version, Map.of()), result,
+                        failure == null ? null : failure.kind(), failure == null ? null : failure.getMessage(), step.millis.get()));
+            }
+            printBatchSummary("Bugfix summary", summary);
+            return summary.stream().allMatch(result -> result.failure == null) ? 0 : 1;
+        } catch (ReleaseException e) {
+            return 1;
+        } finally {
+            if (context.gitSession != null && !context.embedded) {
+                context.gitSession.close();
+            }
+        }
+    }
+
+    /**
+     * Reads project information of many branches or tags at once without checking them out,
+     * pom.xml blobs are read through one git cat-file pipe, see {@link GitSession#readFiles(List, String)}.
+     * @param revisions
+     * @return project information by revision, revisions without readable pom.xml are missing
+     */
+    private static Map<String, MavenInfo> readPoms(List<String> revisions) {
+        var poms = new LinkedHashMap<String, MavenInfo>();
+        try {
+            for (var pom : getGitSession().readFiles(revisions, "pom.xml").entrySet()) {
+                try {
+                    poms.put(pom.getKey(), parsePom(new ByteArrayInputStream(pom.getValue())));
+                } catch (XMLStreamException e) {
+                    printWarning("Unable to parse pom.xml of " + pom.getKey(), e);
+                }
+            }
+        } catch (IOException e) {
+            printError("Unable to read pom.xml files from git", e, ReleaseException.Kind.COMMAND);
+        }
+        return poms;
+    }
+
+    /**
+     * @return full names (refs/heads/...) of branches matching BRANCH_RELEASE_PATTERN, short names may be ambiguous
+     */
+    private static List<String> listReleaseBranches() {
+        var pattern = Configuration.BRANCH_RELEASE_PATTERN.get();
+        int placeholder = pattern.indexOf("%s");
+        var branchPattern = placeholder < 0 ? Pattern.compile(Pattern.quote(pattern))
+                : Pattern.compile(Pattern.quote(pattern.substring(0, placeholder)) + ".+" + Pattern.quote(pattern.substring(placeholder + 2)));
+        var output = new OutputSink(Integer.MAX_VALUE);
+        if (runCommand(Configuration.COMMAND_GIT.get(), false, output, "for-each-ref", "--format=%(refname)", "refs/heads/") != 0) {
+            printError("Unable to list branches", null, ReleaseException.Kind.COMMAND);
+        }
+        return output.lines().stream()
+                .filter(ref -> branchPattern.matcher(ref.substring("refs/heads/".length())).matches())
+                .toList();
+    }
+
+    /**
+     * @return socket the daemon listens on
+     */
+    private static Path getDaemonSocketPath() {
+        if (!Configuration.DAEMON_SOCKET.get().isEmpty()) {
+            return Path.of(Configuration.DAEMON_SOCKET.get());
+        }
+        return Path.of(System.getProperty("user.home"), CACHE_DIR, DAEMON_SOCKET_FILE);
+    }
+
+    /**
+     * Runs the daemon, it keeps tool probes, parsed poms and git sessions between requests of {@link #runClient(List)}.
+     * Requests for different working directories run concurrently, requests for the same one are serialized.
+     * Protocol: the client sends the working directory and the arguments, one per line, ended by an empty line.
+     * The daemon answers with lines starting with 'o' (output), 'e' (error output) or 'x' (exit code),
+     * see {@link #sendDaemonMessage(Writer, char, String)}.
+     * @param debug print accepted requests
+     * @return exit code
+     */
+    private static int runDaemon(boolean debug) {
+        var socketPath = getDaemonSocketPath();
+        var address = UnixDomainSocketAddress.of(socketPath);
+        try {
+            SocketChannel.open(address).close();
+            printError("Daemon is already running on " + socketPath, null, false);
+            return 1;
+        } catch (IOException e) {
+            // not running, a stale socket file is replaced
+        }
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            // anyone who can connect runs operations as the daemon's user, the socket is accessible only through
+            // an owner-only directory, the permissions of the socket itself are set after bind
+            if (!createOwnerOnlyDirectory(socketPath.getParent(), Configuration.DAEMON_SOCKET.get().isEmpty())) {
+                printError("Directory " + socketPath.getParent() + " of the daemon socket must be accessible only by its owner", null, false);
+                return 1;
+            }
+            Files.deleteIfExists(socketPath);
+            server.bind(address);
+            socketPath.toFile().deleteOnExit();
+            try {
+                Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // not a posix file system
+            }
+            out().println("MvnRelease daemon, v" + Configuration.APP_VERSION + ", listening on " + socketPath);
+            // virtual threads are not available on java 17, requests wait for processes most of the time anyway
+            var executor = Executors.newCachedThreadPool();
+            while (true) {
+                var channel = server.accept();
+                executor.execute(() -> serveDaemonRequest(channel, debug));
+            }
+        } catch (IOException e) {
+            printError("Daemon failed", e, false);
+            return 1;
+        }
+    }
+
+    /**
+     * Creates the directory with permissions rwx------ when it doesn't exist.
+     * @param enforce sets the permissions also when the directory exists
+     * @return false when the directory is accessible by other users
+     */
+    private static boolean createOwnerOnlyDirectory(Path directory, boolean enforce) throws IOException {
+        var ownerOnly = PosixFilePermissions.fromString("rwx------");
+        try {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(ownerOnly));
+            if (enforce) {
+                Files.setPosixFilePermissions(directory, ownerOnly);
+            }
+            return PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)).endsWith("------");
+        } catch (UnsupportedOperationException e) {
+            // not a posix file system
+            Files.createDirectories(directory);
+            return true;
+        }
+    }
+
+    /**
+     * Runs one client request in its own context, see {@link #runDaemon(boolean)}.
+     */
+    private static void serveDaemonRequest(SocketChannel channel, boolean debug) {
+        try (channel) {
+            var input = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            var workingDir = input.readLine();
+            var args = new ArrayList<String>();
+            for (var line = input.readLine(); line != null && !line.isEmpty(); line = input.readLine()) {
+                args.add(line);
+            }
+            if (workingDir == null) {
+                return;
+            }
+            var directory = new File(workingDir).getCanonicalFile();
+            if (debug) {
+                out().println("[DEBUG] Request in " + directory + ": " + args);
+            }
+            var output = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+            var context = new RunContext(directory,
+                    new PrintStream(new ForwardingOutput(text -> sendDaemonMessage(output, 'o', text)), true, StandardCharsets.UTF_8),
+                    new PrintStream(new ForwardingOutput(text -> sendDaemonMessage(output, 'e', text)), true, StandardCharsets.UTF_8));
+            context.embedded = true;
+            int exitCode;
+            var repository = DAEMON_REPOSITORIES.computeIfAbsent(directory, d -> new DaemonRepository());
+            synchronized (repository) {
+                context.gitSession = repository.gitSession;
+                exitCode = context.call(() -> run(args.toArray(new String[0])));
+                repository.gitSession = context.gitSession;
+            }
+            context.out.flush();
+            context.err.flush();
+            sendDaemonMessage(output, 'x', String.valueOf(exitCode));
+        } catch (IOException e) {
+            printWarning("Daemon request failed", e);
+        }
+    }
+
+    /**
+     * Sends one protocol line to the daemon client, backslashes and line breaks are escaped.
+     * The operation continues when the client is gone, its output is lost then.
+     */
+    private static void sendDaemonMessage(Writer output, char type, String text) {
+        var escaped = text.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+        synchronized (output) {
+            try {
+                output.write(type + escaped + "\n");
+                output.flush();
+            } catch (IOException e) {
+                // client disconnected
+            }
+        }
+    }
+
+    /**
+     * Reverts escaping of {@link #sendDaemonMessage(Writer, char, String)}.
+     */
+    private static String unescapeDaemonMessage(String text) {
+        var result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            var c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                c = text.charAt(++i);
+                result.append(c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Runs the operation in the daemon and prints its output, see {@link #runDaemon(boolean)}.
+     * @param args arguments of the operation
+     * @return exit code of the operation, -1 if the daemon is not running
+     */
+    private static int runClient(List<String> args) {
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(getDaemonSocketPath()))) {
+            var request = new StringBuilder(workingDir().getAbsolutePath()).append('\n');
+            args.forEach(arg -> request.append(arg).append('\n'));
+            request.append('\n');
+            var output = Channels.newOutputStream(channel);
+            output.write(request.toString().getBytes(StandardCharsets.UTF_8));
+            output.flush();
+            var input = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            for (var line = input.readLine(); line != null; line = input.readLine()) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                var text = unescapeDaemonMessage(line.substring(1));
+                switch (line.charAt(0)) {
+                    case 'o' -> {
+                        System.out.print(text);
+                        System.out.flush();
+                    }
+                    case 'e' -> {
+                        System.err.print(text);
+                        System.err.flush();
+                    }
+                    case 'x' -> {
+                        return Integer.parseInt(text);
+                    }
+                    default -> { }
+                }
+            }
+            printError("Daemon closed the connection", null, false);
+            return 1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * List of possible operations this script can perform.
+     */
+    private enum Operation {
+        RELEASE("release - performs a release and creates a release branch", Capability.GIT, Capability.POM),
+        DEV(    "dev     - create next development version (runs on develop branch only)", Capability.GIT, Capability.POM),
+        BUGFIX( "bugfix  - create bugfix version (should be run on release/ branch), doesn't create a new branch", Capability.GIT, Capability.POM),
+        VERSION("version - replaces the version in pom files and does nothing else", Capability.POM),
+        CYCLE(  "cycle   - performs a release and creates next development version at once (runs on develop branch only)", Capability.GIT, Capability.POM);
+
+        private String shortCut;
+        private String help;
+        private Set<Capability> capabilities;
+
+        Operation(String help, Capability... capabilities) {
+            this.shortCut = name().substring(0, 1).toLowerCase();
+            this.help = help;
+            this.capabilities = Set.of(capabilities);
+        }
+
+        /**
+         * Capabilities the operation needs, maven is needed only when versions are updated by maven.
+         */
+        Set<Capability> requiredCapabilities() {
+            var required = EnumSet.noneOf(Capability.class);
+            required.addAll(capabilities);
+            if (context().mavenEngine) {
+                required.add(Capability.MAVEN);
+            }
+            return required;
+        }
+
+        /**
+         * @param name name or shortcut of the operation
+         * @return the operation or null if there is no such operation
+         */
+        static Operation find(String name) {
+            for (var operation : values()) {
+                if (name.equals(operation.toString()) || name.equals(operation.shortCut)) {
+                    return operation;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Things an operation may need, each of them is checked only when an operation needs it.
+     */
+    private enum Capability {
+        GIT,   // git is installed and the working directory is a repository
+        MAVEN, // maven is installed
+        POM    // pom.xml is parsed
+    }
+
+    /**
+     * MavenInfo class is used to parse and store Maven project information.
+     */
+    private record MavenInfo(String groupId, String artifactId, String version, String name) {
+        @Override
+        public String toString() {
+            return "Project information: " + groupId + ":" + artifactId + ": " + version + " (" + name + ")";
+        }
+    }
+
+    /**
+     * Parsed pom file, it's valid while the file is not modified.
+     */
+    private record PomCacheEntry(FileTime modified, long size, MavenInfo mavenInfo) {
+    }
+
+    /**
+     * State of one run: working directory, output, options and what was initialized.
+     * The script runs in {@link #DEFAULT_CONTEXT}, each daemon request and engine call runs in its own context.
+     */
+    private static class RunContext {
+        final File workingDir;
+        final PrintStream out;
+        final PrintStream err;
+        /**
+         * Debug mode enabler.
+         */
+        boolean debug = false;
+        /**
+         * Create commits, tags and branches without running git.
+         */
+        boolean nativeGit = Boolean.parseBoolean(Configuration.GIT_NATIVE_WRITER.get());
+        /**
+         * Fail when tracked files have uncommitted changes.
+         */
+        boolean cleanTreeCheck = false;
+        /**
+         * Use versions-maven-plugin instead of the built-in pom rewrite.
+         */
+        boolean mavenEngine = "maven".equalsIgnoreCase(Configuration.VERSION_UPDATE_ENGINE.get());
+        /**
+         * Run maven goals inside this JVM, see {@link #runEmbeddedMaven(List, OutputSink)}.
+         */
+        boolean embeddedMaven = "embedded".equalsIgnoreCase(Configuration.MAVEN_EXECUTION.get());
+        /**
+         * Run requested by a daemon client or {@link ReleaseEngine}, there is no console to ask.
+         */
+        boolean embedded = false;
+        /**
+         * Capabilities which were already checked, see {@link #requireCapabilities(Set)}.
+         */
+        final Set<Capability> capabilities = EnumSet.noneOf(Capability.class);
+        /**
+         * Project information, it's available once {@link Capability#POM} is required.
+         */
+        MavenInfo mavenInfo;
+        /**
+         * Git processes kept open for the whole run, see {@link #getGitSession()}.
+         */
+        GitSession gitSession;
+        /**
+         * Released versions of artifacts of other projects by groupId:artifactId, see {@link #runTrain(List)}.
+         */
+        Map<String, String> dependencyVersions = Map.of();
+        /**
+         * Ref the temporary worktree is created from, empty for the current branch, null when operations run
+         * in the working directory, see {@link #runInWorktree(Operation, String, boolean)}.
+         */
+        String worktreeRef;
+        /**
+         * Branch updated by the operation running in a temporary worktree, null if it's not a branch.
+         */
+        String worktreeBranch;
+        /**
+         * Bugfix in a temporary worktree doesn't create the tag, it's created together with the branch update.
+         */
+        boolean worktreeTagDeferred = false;
+        /**
+         * Operation in a temporary worktree doesn't move the branch, the caller does, see {@link #runCycle(String, boolean)}.
+         */
+        boolean worktreeBranchDeferred = false;
+
+        RunContext(File workingDir, PrintStream out, PrintStream err) {
+            this.workingDir = workingDir;
+            this.out = out;
+            this.err = err;
+        }
+
+        /**
+         * Creates a context with the same options, checked capabilities and project information.
+         * The git session is not shared.
+         */
+        RunContext fork(File workingDir, PrintStream out, PrintStream err) {
+            var fork = new RunContext(workingDir, out, err);
+            fork.debug = debug;
+            fork.nativeGit = nativeGit;
+            fork.cleanTreeCheck = cleanTreeCheck;
+            fork.mavenEngine = mavenEngine;
+            fork.embeddedMaven = embeddedMaven;
+            fork.embedded = embedded;
+            fork.capabilities.addAll(capabilities);
+            fork.mavenInfo = mavenInfo;
+            fork.dependencyVersions = dependencyVersions;
+            fork.worktreeRef = worktreeRef;
+            fork.worktreeBranch = worktreeBranch;
+            fork.worktreeTagDeferred = worktreeTagDeferred;
+            fork.worktreeBranchDeferred = worktreeBranchDeferred;
+            return fork;
+        }
+
+        /**
+         * Applies the command-line option which changes how operations run.
+         * @return false if it's not such option
+         */
+        boolean applyOption(String option) {
+            switch (option) {
+                case "--debug" -> debug = true;
+                case "--maven" -> mavenEngine = true;
+                case "--embedded-maven" -> embeddedMaven = true;
+                case "--check-clean" -> cleanTreeCheck = true;
+                case "--native-git" -> nativeGit = true;
+                case "--worktree" -> worktreeRef = "";
+                default -> {
+                    if (!option.startsWith("--worktree=")) {
+                        return false;
+                    }
+                    worktreeRef = option.substring("--worktree=".length());
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Runs the task in this context on the current thread.
+         */
+        <T> T call(Supplier<T> task) {
+            var previous = CONTEXT.get();
+            CONTEXT.set(this);
+            try {
+                return task.get();
+            } finally {
+                CONTEXT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Thrown when the run can't continue, the error was already printed, see {@link #printError(String, Exception, boolean)}.
+     */
+    public static class ReleaseException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Reason of the failure.
+         */
+        public enum Kind {
+            INVALID_REQUEST, // arguments of the operation are not valid
+            ENVIRONMENT,     // git, maven, the repository or pom.xml is not available
+            CONFLICT,        // state of the repository doesn't allow the operation, e.g. the branch or the tag exists
+            COMMAND,         // git or maven failed
+            ABORTED,         // the user didn't confirm the operation
+            FAILED           // any other failure
+        }
+
+        private final Kind kind;
+
+        ReleaseException(Kind kind, String message, Exception cause) {
+            super(message, cause);
+            this.kind = kind;
+        }
+
+        public Kind kind() {
+            return kind;
+        }
+    }
+
+    /**
+     * Repository served by the daemon, requests synchronize on it.
+     */
+    private static class DaemonRepository {
+        GitSession gitSession;
+    }
+
+    /**
+     * Output stream passing the written text to the target on each flush,
+     * so a PrintStream with autoflush passes whole lines.
+     */
+    private static class ForwardingOutput extends OutputStream {
+        private final Consumer<String> target;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        ForwardingOutput(Consumer<String> target) {
+            this.target = target;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            buffer.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            buffer.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (buffer.size() > 0) {
+                var text = buffer.toString(StandardCharsets.UTF_8);
+                buffer.reset();
+                target.accept(text);
+            }
+        }
+    }
+
+    /**
+     * Runs operations in-process, nothing is asked and the process never exits, output goes to {@link ReleaseListener}.
+     * Calls of one engine are serialized, engines of different repositories can be used concurrently.
+     * Git processes are kept open between calls until the engine is closed.
+     */
+    public interface ReleaseEngine extends Closeable {
+        /**
+         * Updates the version, commits it to a new release branch and tags it.
+         * @throws ReleaseException when the release fails
+         */
+        ReleaseResult release(String version);
+
+        /**
+         * Updates the development version on the current branch.
+         * @throws ReleaseException when the update fails
+         */
+        ReleaseResult develop(String version);
+
+        /**
+         * Updates the bugfix version on the current branch and tags it.
+         * @throws ReleaseException when the update fails
+         */
+        ReleaseResult bugfix(String version);
+
+        /**
+         * Updates the version in pom files, nothing is committed.
+         * @throws ReleaseException when the update fails
+         */
+        ReleaseResult updateVersion(String version);
+
+        /**
+         * Releases the version like {@link #release(String)} and updates the current branch to the next development version.
+         * @return result of the release
+         * @throws ReleaseException when the release or the update fails
+         */
+        ReleaseResult cycle(String version);
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Receives output of operations run by {@link ReleaseEngine}, usually whole lines including the line break.
+     */
+    public interface ReleaseListener {
+        void output(String text);
+
+        /**
+         * Errors and warnings, they are passed to {@link #output(String)} by default.
+         */
+        default void error(String text) {
+            output(text);
+        }
+    }
+
+    /**
+     * Result of an operation.
+     * @param version the new version
+     * @param branch branch which was created or updated, null when nothing was committed
+     * @param tag created tag, null when no tag was created
+     * @param commit commit the branch points to, null when nothing was committed
+     * @param changedFiles pom files which may have been changed, null if they are not known
+     */
+    public record ReleaseResult(String version, String branch, String tag, String commit, List<File> changedFiles) {
+    }
+
+    /**
+     * Operation of a batch, see {@link #runBatch(List)}.
+     */
+    private record BatchJob(File workingDir, Operation operation, String version, Map<String, String> dependencyVersions) {
+    }
+
+    /**
+     * Operation running in a temporary worktree, see {@link #runWorktreeStep(RunContext, Operation, String, String)}.
+     * @param millis duration, it's set when the result is complete
+     */
+    private record WorktreeStep(Operation operation, String version, String branch, CompletableFuture<ReleaseResult> result,
+                                StringBuffer log, AtomicLong millis) {
+    }
+
+    /**
+     * Line of batch or train manifest, see {@link #readManifest(String, List)}.
+     * @param values values following the working directory
+     */
+    private record ManifestLine(int number, File workingDir, List<String> values) {
+    }
+
+    /**
+     * Repository released by the train, see {@link #runTrain(List)}.
+     * @param artifacts groupId:artifactId of its modules
+     * @param references groupId:artifactId of parents, dependencies, plugins and extensions used by its modules
+     */
+    private record TrainProject(File workingDir, String version, Set<String> artifacts, Set<String> references) {
+    }
+
+    /**
+     * Outcome of a batch operation, failure is null when it succeeded.
+     */
+    private record BatchResult(BatchJob job, ReleaseResult result, ReleaseException.Kind failure, String message, long millis) {
+    }
+
+    /**
+     * {@link ReleaseEngine} running operations in their own contexts.
+     */
+    private static class Engine implements ReleaseEngine {
+        private final File workingDir;
+        private final ReleaseListener listener;
+        private final String[] options;
+        private GitSession gitSession;
+
+        Engine(File workingDir, ReleaseListener listener, String... options) {
+            this.workingDir = workingDir;
+            this.listener = listener;
+            this.options = options;
+            var check = new RunContext(workingDir, null, null);
+            for (var option : options) {
+                if (!check.applyOption(option)) {
+                    throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+        }
+
+        @Override
+        public ReleaseResult release(String version) {
+            return run(Operation.RELEASE, version, listener, Map.of());
+        }
+
+        @Override
+        public ReleaseResult develop(String version) {
+            return run(Operation.DEV, version, listener, Map.of());
+        }
+
+        @Override
+        public ReleaseResult bugfix(String version) {
+            return run(Operation.BUGFIX, version, listener, Map.of());
+        }
+
+        @Override
+        public ReleaseResult updateVersion(String version) {
+            return run(Operation.VERSION, version, listener, Map.of());
+        }
+
+        @Override
+        public ReleaseResult cycle(String version) {
+            return run(Operation.CYCLE, version, listener, Map.of());
+        }
+
+        synchronized ReleaseResult run(Operation operation, String version, ReleaseListener listener,
+                                       Map<String, String> dependencyVersions) {
+            var context = new RunContext(workingDir,
+                    new PrintStream(new ForwardingOutput(listener::output), true, StandardCharsets.UTF_8),
+                    new PrintStream(new ForwardingOutput(listener::error), true, StandardCharsets.UTF_8));
+            context.embedded = true;
+            context.gitSession = gitSession;
+            context.dependencyVersions = dependencyVersions;
+            for (var option : options) {
+                context.applyOption(option);
+            }
+            try {
+                return context.call(() -> runOperation(operation, version, false));
+            } finally {
+                gitSession = context.gitSession;
+                context.out.flush();
+                context.err.flush();
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (gitSession != null) {
+                gitSession.close();
+                gitSession = null;
+            }
+        }
+    }
+
+    /**
+     * VersionInfo class is used to parse and store version information.
+     */
+    private static class VersionInfo {
+        String major;
+        String minor;
+        String patch;
+        String suffix;
+        VersionInfo(String version) {
+            // Split the numeric part into major, minor, and patch
+            String[] parts = version.split("-");
+            String numericPart = parts[0]; // "1.0.0"
+            suffix = parts.length > 1 ? parts[1] : ""; // "SNAPSHOT"
+
+            String[] numbers = numericPart.split("\\.");
+            major = numbers[0];
+            minor = numbers[1];
+            if (numbers.length < 3) {
+                patch = "0"; // default patch version if not specified
+            } else {
+                patch = numbers[2];
+            }
+        }
+    }
+
+    /**
+     * Read-only access to the .git directory, it answers simple questions without starting git.
+     * Linked worktrees (.git file with gitdir: reference), loose refs and packed-refs are supported.
+     */
+    private static class GitRepository {
+        final File workTree;
+        /** .git directory of the working tree, it's worktree-specific for linked worktrees */
+        final File gitDir;
+        /** directory with refs and objects shared by all worktrees */
+        final File commonDir;
+
+        private GitRepository(File workTree, File gitDir, File commonDir) {
+            this.workTree = workTree;
+            this.gitDir = gitDir;
+            this.commonDir = commonDir;
+        }
+
+        /**
+         * Finds the repository containing the directory.
+         * @param directory
+         * @return the repository or null if the directory is not inside a git working tree
+         */
+        static GitRepository find(File directory) {
+            try {
+                for (var dir = directory.getCanonicalFile(); dir != null; dir = dir.getParentFile()) {
+                    var dotGit = new File(dir, ".git");
+                    File gitDir = null;
+                    if (dotGit.isDirectory()) {
+                        gitDir = dotGit;
+                    } else if (dotGit.isFile()) {
+                        var content = Files.readString(dotGit.toPath()).trim();
+                        if (content.startsWith("gitdir:")) {
+                            gitDir = dir.toPath().resolve(content.substring("gitdir:".length()).trim()).normalize().toFile();
+                        }
+                    }
+                    if (gitDir != null && new File(gitDir, "HEAD").isFile()) {
+                        var commonDir = gitDir;
+                        var commonDirFile = new File(gitDir, "commondir");
+                        if (commonDirFile.isFile()) {
+                            commonDir = gitDir.toPath().resolve(Files.readString(commonDirFile.toPath()).trim()).normalize().toFile();
+                        }
+                        return new GitRepository(dir, gitDir, commonDir);
+                    }
+                }
+            } catch (IOException e) {
+                printWarning("Unable to locate .git directory", e);
+            }
+            return null;
+        }
+
+        /**
+         * @return name of the checked out branch, "HEAD" when detached (same as git rev-parse --abbrev-ref HEAD)
+         */
+        String currentBranch() throws IOException {
+            var head = Files.readString(new File(gitDir, "HEAD").toPath()).trim();
+            if (head.startsWith("ref: refs/heads/")) {
+                return head.substring("ref: refs/heads/".length());
+            }
+            return "HEAD";
+        }
+
+        /**
+         * Resolves the ref to the object id, symbolic refs are followed.
+         * @param ref full ref name, e.g. HEAD or refs/heads/develop
+         * @return object id or null if the ref doesn't exist
+         */
+        String resolve(String ref) throws IOException {
+            for (int depth = 0; depth < 5; depth++) {
+                var value = readRef(ref);
+                if (value == null || !value.startsWith("ref: ")) {
+                    return value;
+                }
+                ref = value.substring("ref: ".length());
+            }
+            throw new IOException("Too deep symbolic ref nesting: " + ref);
+        }
+
+        private String readRef(String ref) throws IOException {
+            // HEAD and other pseudo refs are per-worktree, the rest is shared
+            var looseRef = new File(ref.startsWith("refs/") ? commonDir : gitDir, ref);
+            if (looseRef.isFile()) {
+                return Files.readString(looseRef.toPath()).trim();
+            }
+            var packedRefs = new File(commonDir, "packed-refs");
+            if (packedRefs.isFile()) {
+                for (var line : Files.readAllLines(packedRefs.toPath())) {
+                    int separator = line.indexOf(' ');
+                    if (!line.startsWith("#") && !line.startsWith("^") && separator > 0
+                            && line.substring(separator + 1).equals(ref)) {
+                        return line.substring(0, separator);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Long-lived git processes shared by all git operations of one run. 'git cat-file --batch' answers
+     * object queries and 'git update-ref --stdin' applies ref changes as atomic transactions.
+     * Each process is started on first use and restarted when it died after a failure.
+     */
+    private static class GitSession implements Closeable {
+        private final File workingDir;
+        private Process catFile;
+        private Process updateRef;
+        private BufferedReader updateRefOutput;
+
+        GitSession(File workingDir) {
+            this.workingDir = workingDir;
+        }
+
+        private Process start(String... params) throws IOException {
+            var command = new ArrayList<String>();
+            command.add(Configuration.COMMAND_GIT.get());
+            command.addAll(List.of(params));
+            if (context().debug) {
+                out().println("[DEBUG] Starting git session: " + command);
+            }
+            var builder = new ProcessBuilder(command).directory(workingDir);
+            if (params[0].equals("update-ref")) {
+                builder.redirectErrorStream(true);
+            } else {
+                // nobody reads warnings of cat-file, e.g. about ambiguous refs, a full pipe would block it
+                builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+            }
+            return builder.start();
+        }
+
+        /**
+         * Reads an object from the repository.
+         * @param revision any revision git understands, e.g. HEAD or release/1.0:pom.xml
+         * @return the object or null if it doesn't exist
+         */
+        synchronized GitObject readObject(String revision) throws IOException {
+            if (catFile == null || !catFile.isAlive()) {
+                catFile = start("cat-file", "--batch");
+            }
+            var input = catFile.getOutputStream();
+            input.write((revision + "\n").getBytes(StandardCharsets.UTF_8));
+            input.flush();
+            return readObject(catFile.getInputStream(), revision);
+        }
+
+        /**
+         * Reads the file from many revisions through one cat-file pipe. Requests are written by another thread
+         * while responses are read, so neither side waits for the other and the pipes never fill up.
+         * @param revisions e.g. refs/heads/release/1.0
+         * @param path path of the file in the revisions
+         * @return file contents by revision, revisions without the file are missing
+         */
+        synchronized Map<String, byte[]> readFiles(List<String> revisions, String path) throws IOException {
+            if (catFile == null || !catFile.isAlive()) {
+                catFile = start("cat-file", "--batch");
+            }
+            var process = catFile;
+            var writer = new Thread(() -> {
+                try {
+                    var input = process.getOutputStream();
+                    for (var revision : revisions) {
+                        input.write((revision + ":" + path + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                    input.flush();
+                } catch (IOException e) {
+                    process.destroy(); // the reader fails as well
+                }
+            }, "git-cat-file-requests");
+            writer.start();
+            var files = new LinkedHashMap<String, byte[]>();
+            for (var revision : revisions) {
+                var object = readObject(process.getInputStream(), revision + ":" + path);
+                if (object != null && object.type().equals("blob")) {
+                    files.put(revision, object.content());
+                }
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return files;
+        }
+
+        /**
+         * Reads one cat-file --batch response: "<id> <type> <size>" line followed by the content, or "<revision> missing".
+         */
+        private static GitObject readObject(InputStream output, String revision) throws IOException {
+            var header = readLine(output);
+            if (header == null) {
+                throw new IOException("git cat-file terminated unexpectedly");
+            }
+            var parts = header.split(" ");
+            if (parts.length != 3) {
+                return null; // missing or ambiguous
+            }
+            var content = output.readNBytes(Integer.parseInt(parts[2]));
+            output.read(); // trailing LF
+            return new GitObject(parts[0], parts[1], content);
+        }
+
+        private static String readLine(InputStream input) throws IOException {
+            var line = new StringBuilder();
+            int c;
+            while ((c = input.read()) != '\n') {
+                if (c < 0) {
+                    return line.length() == 0 ? null : line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        /**
+         * Resolves the revision to an object id.
+         * @param revision
+         * @return object id or null if the revision doesn't exist
+         */
+        String resolve(String revision) throws IOException {
+            var object = readObject(revision);
+            return object == null ? null : object.id;
+        }
+
+        /**
+         * Applies all ref updates in one transaction, either all of them are applied or none.
+         * @param updates update-ref --stdin commands, e.g. "create refs/tags/v1.0.0 <id>"
+         * @throws IOException with git's error message when the transaction fails
+         */
+        synchronized void updateRefs(String... updates) throws IOException {
+            if (updateRef == null || !updateRef.isAlive()) {
+                updateRef = start("update-ref", "-m", "mvnrelease", "--stdin");
+                updateRefOutput = new BufferedReader(new InputStreamReader(updateRef.getInputStream(), StandardCharsets.UTF_8));
+            }
+            var transaction = new StringBuilder("start\n");
+            for (var update : updates) {
+                transaction.append(update).append('\n');
+            }
+            transaction.append("prepare\ncommit\n");
+            var input = updateRef.getOutputStream();
+            input.write(transaction.toString().getBytes(StandardCharsets.UTF_8));
+            input.flush();
+            for (var expected : List.of("start: ok", "prepare: ok", "commit: ok")) {
+                var line = updateRefOutput.readLine();
+                if (!expected.equals(line)) {
+                    throw new IOException(line == null ? "git update-ref terminated unexpectedly" : line);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            for (var process : new Process[]{catFile, updateRef}) {
+                if (process != null) {
+                    try {
+                        process.getOutputStream().close();
+                        process.waitFor();
+                    } catch (IOException | InterruptedException e) {
+                        process.destroy();
+                    }
+                }
+            }
+            catFile = null;
+            updateRef = null;
+        }
+    }
+
+    /**
+     * Git object read by {@link GitSession}.
+     */
+    private record GitObject(String id, String type, byte[] content) {
+    }
+
+    /**
+     * Reads and writes git objects without running git. Loose objects and pack files (including deltas)
+     * are read, new objects are always written as loose objects. Only SHA-1 repositories are supported.
+     */
+    private static class GitObjectDatabase {
+        private static final String[] PACK_TYPES = {null, "commit", "tree", "blob", "tag"};
+        private final File objectsDir;
+        private final List<File> objectDirs = new ArrayList<>();
+        private List<GitPack> packs;
+
+        GitObjectDatabase(GitRepository repository) throws IOException {
+            objectsDir = new File(repository.commonDir, "objects");
+            objectDirs.add(objectsDir);
+            var alternates = new File(objectsDir, "info/alternates");
+            if (alternates.isFile()) {
+                for (var line : Files.readAllLines(alternates.toPath())) {
+                    if (!line.isBlank() && !line.startsWith("#")) {
+                        objectDirs.add(objectsDir.toPath().resolve(line.trim()).normalize().toFile());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads the object.
+         * @param id object id
+         * @return the object or null if it doesn't exist
+         */
+        GitObject read(String id) throws IOException {
+            for (var dir : objectDirs) {
+                var looseObject = new File(dir, id.substring(0, 2) + "/" + id.substring(2));
+                if (looseObject.isFile()) {
+                    byte[] data;
+                    try (var input = new InflaterInputStream(new FileInputStream(looseObject))) {
+                        data = input.readAllBytes();
+                    }
+                    int headerEnd = 0;
+                    while (data[headerEnd] != 0) {
+                        headerEnd++;
+                    }
+                    var header = new String(data, 0, headerEnd, StandardCharsets.US_ASCII);
+                    return new GitObject(id, header.substring(0, header.indexOf(' ')), Arrays.copyOfRange(data, headerEnd + 1, data.length));
+                }
+            }
+            var rawId = HexFormat.of().parseHex(id);
+            for (var pack : getPacks()) {
+                long offset = pack.find(rawId);
+                if (offset >= 0) {
+                    var object = pack.read(offset, this);
+                    return new GitObject(id, object.type, object.content);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads the object and checks its type.
+         * @param id
+         * @param type expected type
+         * @return the object content
+         * @throws IOException if the object doesn't exist or its type is different
+         */
+        byte[] read(String id, String type) throws IOException {
+            var object = read(id);
+            if (object == null || !object.type.equals(type)) {
+                throw new IOException("Git object " + id + " is not a " + type);
+            }
+            return object.content;
+        }
+
+        private synchronized List<GitPack> getPacks() throws IOException {
+            if (packs == null) {
+                packs = new ArrayList<>();
+                for (var dir : objectDirs) {
+                    var indexFiles = new File(dir, "pack").listFiles((d, name) -> name.endsWith(".idx"));
+                    if (indexFiles != null) {
+                        for (var indexFile : indexFiles) {
+                            packs.add(GitPack.open(indexFile));
+                        }
+                    }
+                }
+            }
+            return packs;
+        }
+
+        /**
+         * Writes the object as a loose object, existing objects are not written again.
+         * @param type object type
+         * @param content object content
+         * @return object id
+         */
+        String write(String type, byte[] content) throws IOException {
+            var header = (type + " " + content.length + "\0").getBytes(StandardCharsets.US_ASCII);
+            MessageDigest sha1;
+            try {
+                sha1 = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            sha1.update(header);
+            sha1.update(content);
+            var id = HexFormat.of().formatHex(sha1.digest());
+            var objectFile = new File(objectsDir, id.substring(0, 2) + "/" + id.substring(2));
+            if (!objectFile.isFile()) {
+                Files.createDirectories(objectFile.getParentFile().toPath());
+                var tempFile = Files.createTempFile(objectFile.getParentFile().toPath(), "tmp_obj_", "");
+                try (var output = new DeflaterOutputStream(Files.newOutputStream(tempFile))) {
+                    output.write(header);
+                    output.write(content);
+                }
+                try {
+                    Files.move(tempFile, objectFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    Files.delete(tempFile); // written concurrently by someone else
+                }
+            }
+            return id;
+        }
+
+        /**
+         * Returns the id of a tree with given files replaced, missing files and directories are added.
+         * @param treeId original tree, null for an empty tree
+         * @param blobs blob ids by path relative to the tree, '/' is used as a separator
+         * @return id of the new tree
+         */
+        String updateTree(String treeId, Map<String, String> blobs) throws IOException {
+            var entries = new ArrayList<TreeEntry>();
+            if (treeId != null) {
+                entries.addAll(parseTree(read(treeId, "tree")));
+            }
+            var subtrees = new TreeMap<String, Map<String, String>>();
+            blobs.forEach((path, blobId) -> {
+                int separator = path.indexOf('/');
+                if (separator < 0) {
+                    var mode = entries.stream().filter(e -> e.name.equals(path)).map(TreeEntry::mode).findFirst().orElse("100644");
+                    entries.removeIf(e -> e.name.equals(path));
+                    entries.add(new TreeEntry(mode, path, blobId));
+                } else {
+                    subtrees.computeIfAbsent(path.substring(0, separator), k -> new TreeMap<>())
+                            .put(path.substring(separator + 1), blobId);
+                }
+            });
+            for (var subtree : subtrees.entrySet()) {
+                String subtreeId = null;
+                for (var entry : entries) {
+                    if (entry.name.equals(subtree.getKey()) && entry.isTree()) {
+                        subtreeId = entry.id;
+                    }
+                }
+                entries.removeIf(e -> e.name.equals(subtree.getKey()));
+                entries.add(new TreeEntry("40000", subtree.getKey(), updateTree(subtreeId, subtree.getValue())));
+            }
+            return write("tree", formatTree(entries));
+        }
+
+        private static List<TreeEntry> parseTree(byte[] content) {
+            var entries = new ArrayList<TreeEntry>();
+            int pos = 0;
+            while (pos < content.length) {
+                int space = pos;
+                while (content[space] != ' ') {
+                    space++;
+                }
+                int nul = space;
+                while (content[nul] != 0) {
+                    nul++;
+                }
+                entries.add(new TreeEntry(new String(content, pos, space - pos, StandardCharsets.US_ASCII),
+                        new String(content, space + 1, nul - space - 1, StandardCharsets.UTF_8),
+                        HexFormat.of().formatHex(content, nul + 1, nul + 21)));
+                pos = nul + 21;
+            }
+            return entries;
+        }
+
+        private static byte[] formatTree(List<TreeEntry> entries) {
+            // git sorts trees as if their names ended with '/'
+            var sorted = new ArrayList<>(entries);
+            sorted.sort((a, b) -> Arrays.compareUnsigned(a.sortKey(), b.sortKey()));
+            var output = new ByteArrayOutputStream();
+            for (var entry : sorted) {
+                output.writeBytes((entry.mode + " " + entry.name + "\0").getBytes(StandardCharsets.UTF_8));
+                output.writeBytes(HexFormat.of().parseHex(entry.id));
+            }
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Entry of a git tree object.
+     */
+    private record TreeEntry(String mode, String name, String id) {
+        boolean isTree() {
+            return mode.equals("40000");
+        }
+
+        byte[] sortKey() {
+            return (isTree() ? name + "/" : name).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Git pack file with its version 2 index, both files are memory mapped.
+     */
+    private static class GitPack {
+        private final ByteBuffer index;
+        private final ByteBuffer pack;
+        private final int count;
+
+        private GitPack(ByteBuffer index, ByteBuffer pack) {
+            this.index = index;
+            this.pack = pack;
+            this.count = index.getInt(8 + 255 * 4);
+        }
+
+        static GitPack open(File indexFile) throws IOException {
+            var packFile = new File(indexFile.getPath().replaceAll("\\.idx$", ".pack"));
+            var index = map(indexFile);
+            if (index.getInt(0) != 0xff744f63 || index.getInt(4) != 2) {
+                throw new IOException("Unsupported pack index version: " + indexFile);
+            }
+            return new GitPack(index, map(packFile));
+        }
+
+        private static ByteBuffer map(File file) throws IOException {
+            try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        /**
+         * @param id raw object id
+         * @return offset of the object in the pack, -1 if it's not in this pack
+         */
+        long find(byte[] id) {
+            int first = id[0] & 0xff;
+            int low = first == 0 ? 0 : index.getInt(8 + (first - 1) * 4);
+            int high = index.getInt(8 + first * 4);
+            int names = 8 + 256 * 4;
+            var candidate = new byte[20];
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                index.get(names + middle * 20, candidate);
+                int comparison = Arrays.compareUnsigned(candidate, id);
+                if (comparison == 0) {
+                    int offsets = names + count * 24;
+                    int offset = index.getInt(offsets + middle * 4);
+                    if (offset < 0) {
+                        return index.getLong(offsets + count * 4 + (offset & 0x7fffffff) * 8);
+                    }
+                    return offset;
+                } else if (comparison < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Reads the object at the offset, deltas are resolved against their base objects.
+         */
+        GitObject read(long offset, GitObjectDatabase database) throws IOException {
+            int pos = Math.toIntExact(offset);
+            int c = pack.get(pos++) & 0xff;
+            int type = (c >> 4) & 7;
+            long size = c & 15;
+            for (int shift = 4; (c & 0x80) != 0; shift += 7) {
+                c = pack.get(pos++) & 0xff;
+                size |= (long) (c & 0x7f) << shift;
+            }
+            switch (type) {
+                case 1, 2, 3, 4 -> {
+                    return new GitObject(null, GitObjectDatabase.PACK_TYPES[type], inflate(pos, size));
+                }
+                case 6 -> { // delta with base at relative offset
+                    c = pack.get(pos++) & 0xff;
+                    long distance = c & 0x7f;
+                    while ((c & 0x80) != 0) {
+                        c = pack.get(pos++) & 0xff;
+                        distance = ((distance + 1) << 7) | (c & 0x7f);
+                    }
+                    var base = read(offset - distance, database);
+                    return new GitObject(null, base.type, applyDelta(base.content, inflate(pos, size)));
+                }
+                case 7 -> { // delta with base referenced by id
+                    var baseId = new byte[20];
+                    pack.get(pos, baseId);
+                    var base = database.read(HexFormat.of().formatHex(baseId));
+                    if (base == null) {
+                        throw new IOException("Missing delta base " + HexFormat.of().formatHex(baseId));
+                    }
+                    return new GitObject(null, base.type, applyDelta(base.content, inflate(pos + 20, size)));
+                }
+                default -> throw new IOException("Unknown pack object type " + type + " at offset " + offset);
+            }
+        }
+
+        private byte[] inflate(int pos, long size) throws IOException {
+            var inflater = new Inflater();
+            try {
+                inflater.setInput(pack.slice(pos, pack.limit() - pos));
+                var content = new byte[Math.toIntExact(size)];
+                int length = 0;
+                while (length < content.length) {
+                    int read = inflater.inflate(content, length, content.length - length);
+                    if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Corrupted pack object at offset " + pos);
+                    }
+                    length += read;
+                }
+                return content;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted pack object at offset " + pos, e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        private static byte[] applyDelta(byte[] base, byte[] delta) {
+            int[] pos = {0};
+            readDeltaSize(delta, pos); // base size
+            var result = new byte[Math.toIntExact(readDeltaSize(delta, pos))];
+            int length = 0;
+            while (pos[0] < delta.length) {
+                int op = delta[pos[0]++] & 0xff;
+                if ((op & 0x80) != 0) {
+                    int copyOffset = 0;
+                    int copySize = 0;
+                    for (int i = 0; i < 4; i++) {
+                        if ((op & (1 << i)) != 0) {
+                            copyOffset |= (delta[pos[0]++] & 0xff) << (8 * i);
+                        }
+                    }
+                    for (int i = 0; i < 3; i++) {
+                        if ((op & (0x10 << i)) != 0) {
+                            copySize |= (delta[pos[0]++] & 0xff) << (8 * i);
+                        }
+                    }
+                    if (copySize == 0) {
+                        copySize = 0x10000;
+                    }
+                    System.arraycopy(base, copyOffset, result, length, copySize);
+                    length += copySize;
+                } else {
+                    System.arraycopy(delta, pos[0], result, length, op);
+                    pos[0] += op;
+                    length += op;
+                }
+            }
+            return result;
+        }
+
+        private static long readDeltaSize(byte[] delta, int[] pos) {
+            long size = 0;
+            int shift = 0;
+            int c;
+            do {
+                c = delta[pos[0]++] & 0xff;
+                size |= (long) (c & 0x7f) << shift;
+                shift += 7;
+            } while ((c & 0x80) != 0);
+            return size;
+        }
+    }
+
+    /**
+     * Creates commits, annotated tags and ref updates directly in the .git directory, git is not started at all.
+     * Refs are updated with lock files the same way git does it and the index entries of committed files
+     * are updated, so the working tree stays clean. Git hooks are not run.
+     */
+    private static class GitNativeWriter {
+        private final GitRepository repository;
+        private final GitObjectDatabase objects;
+
+        GitNativeWriter(GitRepository repository) throws IOException {
+            this.repository = repository;
+            this.objects = new GitObjectDatabase(repository);
+        }
+
+        /**
+         * Commits the files on top of HEAD and updates refs in one step.
+         * @param files files to commit, they must be tracked
+         * @param message commit message
+         * @param newBranch branch to create and check out, null to advance the current branch (or detached HEAD)
+         * @param tagName tag to create, can be null
+         * @param tagMessage message of the annotated tag, lightweight tag is created when empty
+         * @return id of the new commit
+         */
+        String commit(List<File> files, String message, String newBranch, String tagName, String tagMessage) throws IOException {
+            var head = repository.resolve("HEAD");
+            if (head == null || head.length() != 40) {
+                throw new IOException("HEAD must point to an existing commit of a SHA-1 repository");
+            }
+            var headRef = Files.readString(new File(repository.gitDir, "HEAD").toPath()).trim();
+            // the index is checked and locked first, nothing is written when it can't be updated
+            var index = GitIndex.read(new File(repository.gitDir, "index"));
+            index.lock();
+            try {
+                return commit(index, head, headRef, files, message, newBranch, tagName, tagMessage);
+            } finally {
+                index.unlock();
+            }
+        }
+
+        private String commit(GitIndex index, String head, String headRef, List<File> files, String message,
+                              String newBranch, String tagName, String tagMessage) throws IOException {
+            var conversion = findContentConversion(files.stream().map(file -> file.getAbsoluteFile().getParentFile()).toList());
+            if (conversion != null) {
+                throw new IOException("Git converts committed files (" + conversion + "), native commit would differ");
+            }
+            // objects
+            var blobs = new TreeMap<String, String>();
+            var pathFiles = new TreeMap<String, File>();
+            var workTree = repository.workTree.toPath();
+            for (var file : files) {
+                var path = workTree.relativize(file.toPath().toRealPath()).toString().replace(File.separatorChar, '/');
+                index.checkTracked(path);
+                blobs.put(path, objects.write("blob", Files.readAllBytes(file.toPath())));
+                pathFiles.put(path, file);
+            }
+            var commit = head;
+            if (!blobs.isEmpty()) {
+                var tree = objects.updateTree(commitTree(head), blobs);
+                commit = objects.write("commit", ("tree " + tree + "\nparent " + head + "\nauthor " + identity("AUTHOR")
+                        + "\ncommitter " + identity("COMMITTER") + "\n\n" + message + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+
+            // refs
+            var updates = new ArrayList<RefUpdate>();
+            var reflogMessage = "commit: " + message;
+            if (newBranch != null) {
+                updates.add(new RefUpdate("refs/heads/" + newBranch, null, commit));
+                updates.add(new RefUpdate("HEAD", headRef, "ref: refs/heads/" + newBranch));
+            } else if (headRef.startsWith("ref: ")) {
+                updates.add(new RefUpdate(headRef.substring("ref: ".length()), head, commit));
+            } else {
+                updates.add(new RefUpdate("HEAD", head, commit));
+            }
+            if (tagName != null) {
+                var target = commit;
+                if (!tagMessage.isEmpty()) {
+                    target = writeTag(commit, tagName, tagMessage);
+                }
+                updates.add(new RefUpdate("refs/tags/" + tagName, null, target));
+            }
+            updateRefs(updates, head, commit, reflogMessage);
+            if (!blobs.isEmpty()) {
+                index.update(blobs, pathFiles);
+            }
+            return commit;
+        }
+
+        /**
+         * Files are committed as they are in the working tree, git would convert them when core.autocrlf is enabled
+         * or attributes set text, eol, filter, ident or working-tree-encoding. Attribute patterns are not matched,
+         * any such attribute in .gitattributes of the directories, info/attributes or core.attributesFile counts.
+         * @param dirs working tree directories of committed files
+         * @return the setting which converts files, null if there is none
+         */
+        String findContentConversion(Collection<File> dirs) throws IOException {
+            var autocrlf = readConfig("core", "autocrlf");
+            if (autocrlf != null && !autocrlf.equalsIgnoreCase("false")) {
+                return "core.autocrlf=" + autocrlf;
+            }
+            var home = System.getProperty("user.home");
+            var attributesFile = readConfig("core", "attributesFile");
+            var attributeFiles = new LinkedHashSet<File>();
+            attributeFiles.add(attributesFile != null
+                    ? new File(attributesFile.startsWith("~/") ? home + attributesFile.substring(1) : attributesFile)
+                    : new File(System.getenv().getOrDefault("XDG_CONFIG_HOME", home + "/.config"), "git/attributes"));
+            attributeFiles.add(new File(repository.commonDir, "info/attributes"));
+            var workTree = repository.workTree.toPath().toAbsolutePath().normalize();
+            for (var dir : dirs) {
+                for (var path = dir.toPath().toAbsolutePath().normalize(); path != null && path.startsWith(workTree); path = path.getParent()) {
+                    attributeFiles.add(path.resolve(".gitattributes").toFile());
+                }
+            }
+            for (var file : attributeFiles) {
+                if (!file.isFile()) {
+                    continue;
+                }
+                for (var line : Files.readAllLines(file.toPath())) {
+                    var tokens = line.trim().split("\\s+");
+                    if (tokens[0].isEmpty() || tokens[0].startsWith("#")) {
+                        continue;
+                    }
+                    for (int i = 1; i < tokens.length; i++) {
+                        var name = tokens[i].contains("=") ? tokens[i].substring(0, tokens[i].indexOf('=')) : tokens[i];
+                        if (Set.of("text", "eol", "crlf", "filter", "ident", "working-tree-encoding").contains(name)) {
+                            return tokens[i] + " in " + file;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Writes an annotated tag object.
+         * @return id of the tag object
+         */
+        String writeTag(String commit, String tagName, String message) throws IOException {
+            return objects.write("tag", ("object " + commit + "\ntype commit\ntag " + tagName + "\ntagger "
+                    + identity("COMMITTER") + "\n\n" + message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private String commitTree(String commit) throws IOException {
+            var content = new String(objects.read(commit, "commit"), StandardCharsets.UTF_8);
+            return content.substring("tree ".length(), "tree ".length() + 40);
+        }
+
+        /**
+         * Locks all refs, verifies their current values and then moves the locks in place.
+         * Nothing is changed when any ref is locked or has an unexpected value.
+         */
+        private void updateRefs(List<RefUpdate> updates, String oldHead, String newHead, String reflogMessage) throws IOException {
+            var locks = new ArrayList<Path>();
+            try {
+                for (var update : updates) {
+                    var refFile = refFile(update.ref);
+                    Files.createDirectories(refFile.getParent());
+                    var lock = refFile.resolveSibling(refFile.getFileName() + ".lock");
+                    try {
+                        Files.createFile(lock);
+                    } catch (FileAlreadyExistsException e) {
+                        throw new IOException("Unable to lock " + update.ref + ", " + lock + " exists");
+                    }
+                    locks.add(lock);
+                    var current = update.ref.equals("HEAD") && update.newValue.startsWith("ref: ")
+                            ? Files.readString(refFile).trim()
+                            : repository.resolve(update.ref);
+                    if (!Objects.equals(current, update.oldValue)) {
+                        throw new IOException(update.oldValue == null ? update.ref + " already exists" : update.ref + " was changed concurrently");
+                    }
+                    Files.writeString(lock, update.newValue + "\n");
+                }
+                for (int i = 0; i < updates.size(); i++) {
+                    Files.move(locks.get(i), refFile(updates.get(i).ref), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+                locks.clear();
+            } finally {
+                for (var lock : locks) {
+                    Files.deleteIfExists(lock);
+                }
+            }
+            var ident = identity("COMMITTER");
+            for (var update : updates) {
+                if (update.ref.startsWith("refs/heads/")) {
+                    appendReflog(repository.commonDir, update.ref, update.oldValue, newHead, ident, reflogMessage);
+                }
+            }
+            appendReflog(repository.gitDir, "HEAD", oldHead, newHead, ident, reflogMessage);
+        }
+
+        private Path refFile(String ref) {
+            return new File(ref.startsWith("refs/") ? repository.commonDir : repository.gitDir, ref).toPath();
+        }
+
+        /**
+         * Appends the reflog entry, reflogs are written only when the repository keeps them.
+         */
+        private static void appendReflog(File gitDir, String ref, String oldValue, String newValue, String ident, String message) throws IOException {
+            var logs = new File(gitDir, "logs");
+            if (!logs.isDirectory()) {
+                return;
+            }
+            var log = new File(logs, ref);
+            Files.createDirectories(log.getParentFile().toPath());
+            var line = (oldValue == null ? "0".repeat(40) : oldValue) + " " + newValue + " " + ident + "\t" + message.lines().findFirst().orElse("") + "\n";
+            Files.writeString(log.toPath(), line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        /**
+         * Identity with timestamp in git format, GIT_AUTHOR_* / GIT_COMMITTER_* variables take precedence over user.name and user.email.
+         * @param role AUTHOR or COMMITTER
+         */
+        private String identity(String role) throws IOException {
+            var name = System.getenv("GIT_" + role + "_NAME");
+            var email = System.getenv("GIT_" + role + "_EMAIL");
+            if (name == null) {
+                name = readConfig("user", "name");
+            }
+            if (email == null) {
+                email = readConfig("user", "email");
+            }
+            if (name == null || email == null) {
+                throw new IOException("Git user.name and user.email must be configured");
+            }
+            var now = ZonedDateTime.now();
+            var offset = now.getOffset().getTotalSeconds() / 60;
+            return String.format("%s <%s> %d %s%02d%02d", name, email, now.toEpochSecond(),
+                    offset < 0 ? "-" : "+", Math.abs(offset) / 60, Math.abs(offset) % 60);
+        }
+
+        /**
+         * Reads a value from repository, global and system git config. include.path is followed,
+         * conditional includes (includeIf) are not supported, git must be used when a config has them.
+         */
+        private String readConfig(String section, String key) throws IOException {
+            var home = System.getProperty("user.home");
+            var xdgConfig = System.getenv().getOrDefault("XDG_CONFIG_HOME", home + "/.config");
+            for (var config : List.of(new File(repository.commonDir, "config"), new File(home, ".gitconfig"),
+                    new File(xdgConfig, "git/config"), new File("/etc/gitconfig"))) {
+                var value = readConfigFile(config, section, key, 0);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the last value of the key in the config file and the files it includes, null if it's not set
+         */
+        private static String readConfigFile(File config, String section, String key, int depth) throws IOException {
+            if (!config.isFile()) {
+                return null;
+            }
+            if (depth > 10) {
+                throw new IOException("Git config includes are nested too deep: " + config);
+            }
+            String currentSection = null;
+            String value = null;
+            for (var line : Files.readAllLines(config.toPath())) {
+                line = line.trim();
+                if (line.startsWith("[")) {
+                    currentSection = line.substring(1, line.indexOf(']')).trim().toLowerCase();
+                    if (currentSection.startsWith("includeif")) {
+                        throw new IOException("Conditional includes of git config are not supported: " + config);
+                    }
+                } else if (line.contains("=")) {
+                    var name = line.substring(0, line.indexOf('=')).trim();
+                    var current = line.substring(line.indexOf('=') + 1).trim();
+                    if (current.length() > 1 && current.startsWith("\"") && current.endsWith("\"")) {
+                        current = current.substring(1, current.length() - 1);
+                    }
+                    if ("include".equals(currentSection) && name.equalsIgnoreCase("path")) {
+                        var path = current.startsWith("~/") ? new File(System.getProperty("user.home"), current.substring(2)) : new File(current);
+                        var included = readConfigFile(path.isAbsolute() ? path : new File(config.getParentFile(), current), section, key, depth + 1);
+                        value = included != null ? included : value;
+                    } else if (section.equals(currentSection) && name.equalsIgnoreCase(key)) {
+                        value = current;
+                    }
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Ref change done by {@link GitNativeWriter}, oldValue is null when the ref must not exist yet.
+     */
+    private record RefUpdate(String ref, String oldValue, String newValue) {
+    }
+
+    /**
+     * Git index (version 2 and 3) patched in place. Entries of committed files get the new blob id and file stats,
+     * optional cache extensions are dropped, git rebuilds them when needed. Indexes with required extensions
+     * (e.g. sparse index) are rejected when read.
+     */
+    private static class GitIndex {
+        private final File file;
+        private final byte[] data;
+        private final Map<String, Integer> entries = new HashMap<>();
+        private final int entriesEnd;
+        /**
+         * Offsets of extensions which are kept, see {@link #update(Map, Map)}.
+         */
+        private final List<Integer> keptExtensions = new ArrayList<>();
+        private final Path lock;
+
+        private GitIndex(File file, byte[] data) throws IOException {
+            this.file = file;
+            this.data = data;
+            var buffer = ByteBuffer.wrap(data);
+            int version = buffer.getInt(4);
+            if (buffer.getInt(0) != 0x44495243 || (version != 2 && version != 3)) {
+                throw new IOException("Unsupported git index version " + version);
+            }
+            int pos = 12;
+            for (int i = buffer.getInt(8); i > 0; i--) {
+                int flags = buffer.getShort(pos + 60) & 0xffff;
+                int pathStart = pos + 62 + ((flags & 0x4000) != 0 ? 2 : 0);
+                int pathEnd = pathStart;
+                while (data[pathEnd] != 0) {
+                    pathEnd++;
+                }
+                var path = new String(data, pathStart, pathEnd - pathStart, StandardCharsets.UTF_8);
+                entries.put(path, (flags & 0x3000) == 0 ? pos : -1);
+                pos += (pathEnd - pos + 8) & ~7;
+            }
+            entriesEnd = pos;
+            // keep resolve-undo, drop optional caches, required extensions can't be updated
+            while (pos < data.length - 20) {
+                var signature = new String(data, pos, 4, StandardCharsets.US_ASCII);
+                if (Character.isLowerCase(signature.charAt(0))) {
+                    throw new IOException("Unsupported git index extension " + signature);
+                }
+                if (signature.equals("REUC")) {
+                    keptExtensions.add(pos);
+                }
+                pos += 8 + buffer.getInt(pos + 4);
+            }
+            lock = new File(file.getPath() + ".lock").toPath();
+        }
+
+        static GitIndex read(File file) throws IOException {
+            return new GitIndex(file, Files.readAllBytes(file.toPath()));
+        }
+
+        void checkTracked(String path) throws IOException {
+            var entry = entries.get(path);
+            if (entry == null || entry < 0) {
+                throw new IOException(path + " is not tracked or has merge conflicts");
+            }
+        }
+
+        /**
+         * Creates the lock file, so the index can't be changed by git until it's updated or unlocked.
+         */
+        void lock() throws IOException {
+            try {
+                Files.createFile(lock);
+            } catch (FileAlreadyExistsException e) {
+                throw new IOException("Unable to lock git index, " + lock + " exists");
+            }
+        }
+
+        /**
+         * Removes the lock file if the index wasn't updated.
+         */
+        void unlock() throws IOException {
+            Files.deleteIfExists(lock);
+        }
+
+        /**
+         * Updates the entries and writes the index through the lock file, see {@link #lock()}.
+         * @param blobs new blob ids by path
+         * @param files working tree files by path
+         */
+        void update(Map<String, String> blobs, Map<String, File> files) throws IOException {
+            var buffer = ByteBuffer.wrap(data);
+            for (var blob : blobs.entrySet()) {
+                int pos = entries.get(blob.getKey());
+                var attributes = readStat(files.get(blob.getKey()).toPath());
+                var ctime = (FileTime) attributes.getOrDefault("ctime", attributes.get("lastModifiedTime"));
+                var mtime = (FileTime) attributes.get("lastModifiedTime");
+                buffer.putInt(pos, (int) ctime.to(TimeUnit.SECONDS));
+                buffer.putInt(pos + 4, (int) (ctime.to(TimeUnit.NANOSECONDS) % 1_000_000_000L));
+                buffer.putInt(pos + 8, (int) mtime.to(TimeUnit.SECONDS));
+                buffer.putInt(pos + 12, (int) (mtime.to(TimeUnit.NANOSECONDS) % 1_000_000_000L));
+                if (attributes.containsKey("ino")) {
+                    buffer.putInt(pos + 16, ((Number) attributes.get("dev")).intValue());
+                    buffer.putInt(pos + 20, ((Number) attributes.get("ino")).intValue());
+                    buffer.putInt(pos + 28, ((Number) attributes.get("uid")).intValue());
+                    buffer.putInt(pos + 32, ((Number) attributes.get("gid")).intValue());
+                }
+                buffer.putInt(pos + 36, (int) ((Number) attributes.get("size")).longValue());
+                buffer.put(pos + 40, HexFormat.of().parseHex(blob.getValue()));
+            }
+            var output = new ByteArrayOutputStream();
+            output.write(data, 0, entriesEnd);
+            for (int pos : keptExtensions) {
+                output.write(data, pos, 8 + buffer.getInt(pos + 4));
+            }
+            try {
+                output.write(MessageDigest.getInstance("SHA-1").digest(output.toByteArray()));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            Files.write(lock, output.toByteArray(), StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            Files.move(lock, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private static Map<String, Object> readStat(Path path) throws IOException {
+            try {
+                return Files.readAttributes(path, "unix:*");
+            } catch (UnsupportedOperationException e) {
+                return Files.readAttributes(path, "basic:*");
+            }
+        }
+    }
+
+    /**
+     * Maven goal planned for an operation, see {@link #planMavenInvocations(List)}.
+     * @param goal goal or lifecycle phase, e.g. validate
+     * @param properties -D properties of the goal
+     * @param changesPoms the goal rewrites pom files
+     * @param readsProject the goal works with the project model, so it must see pom changes of earlier goals
+     */
+    private record MavenGoal(String goal, Map<String, String> properties, boolean changesPoms, boolean readsProject) {}
+
+    /**
+     * Maven installation loaded by an isolated class loader.
+     */
+    private record EmbeddedMaven(File home, ClassLoader classLoader, Class<?> cliClass) {}
+
+    /**
+     * Bounded buffer for command output, only the last lines are kept.
+     * It's thread-safe, so it can be shared by multiple readers.
+     */
+    private static class OutputSink {
+        private final int maxLines;
+        private final ArrayDeque<String> lines = new ArrayDeque<>();
+
+        OutputSink(int maxLines) {
+            this.maxLines = maxLines;
+        }
+
+        synchronized void add(String line) {
+            if (lines.size() == maxLines) {
+                lines.removeFirst();
+            }
+            lines.addLast(line);
+        }
+
+        synchronized String lastLine() {
+            return lines.peekLast();
+        }
+
+        synchronized List<String> lines() {
+            return List.copyOf(lines);
+        }
+    }
+
+    /**
+     * Element of a pom.xml file, it remembers where its content starts and ends in the original text.
+     */
+    private static class PomElement {
+        final String name;
+        final PomElement parent;
+        final List<PomElement> children = new ArrayList<>();
+        final int contentStart;
+        int contentEnd;
+
+        PomElement(String name, PomElement parent, int contentStart) {
+            this.name = name;
+            this.parent = parent;
+            this.contentStart = contentStart;
+            this.contentEnd = contentStart;
+        }
+
+        PomElement child(String childName) {
+            for (var child : children) {
+                if (child.name.equals(childName)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Pom file kept as the original text together with a lightweight element tree.
+     * The text is only patched in place, so formatting and comments are preserved on rewrite.
+     */
+    private static class PomFile {
+        private static final Pattern ENCODING_PATTERN = Pattern.compile("<\\?xml[^>]*encoding\\s*=\\s*[\"']([A-Za-z0-9._-]+)[\"']");
+        private static final Pattern EXPRESSION_PATTERN = Pattern.compile("\\$\\{([^}]+)}");
+
+        final File file;
+        final Charset charset;
+        final String text;
+        final PomElement project;
+
+        private PomFile(File file, Charset charset, String text) {
+            this.file = file;
+            this.charset = charset;
+            this.text = text;
+            this.project = scan(text).child("project");
+            if (project == null) {
+                throw new IllegalStateException(file.getPath() + " doesn't contain <project> element");
+            }
+        }
+
+        static PomFile read(File file) throws IOException {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            var matcher = ENCODING_PATTERN.matcher(new String(bytes, 0, Math.min(bytes.length, 200), StandardCharsets.ISO_8859_1));
+            var charset = matcher.find() ? Charset.forName(matcher.group(1)) : StandardCharsets.UTF_8;
+            return new PomFile(file, charset, new String(bytes, charset));
+        }
+
+        /**
+         * Builds the element tree, comments, CDATA sections, processing instructions and doctype are skipped.
+         */
+        private static PomElement scan(String text) {
+            var document = new PomElement("", null, 0);
+            var current = document;
+            int i = 0;
+            while ((i = text.indexOf('<', i)) >= 0) {
+                if (text.startsWith("<!--", i)) {
+                    i = skipPast(text, i, "-->");
+                } else if (text.startsWith("<![CDATA[", i)) {
+                    i = skipPast(text, i, "]]>");
+                } else if (text.startsWith("<?", i)) {
+                    i = skipPast(text, i, "?>");
+                } else if (text.startsWith("<!", i)) {
+                    i = skipPast(text, i, ">");
+                } else if (text.startsWith("</", i)) {
+                    current.contentEnd = i;
+                    if (current.parent != null) {
+                        current = current.parent;
+                    }
+                    i = skipPast(text, i, ">");
+                } else {
+                    int end = tagEnd(text, i);
+                    int nameEnd = i + 1;
+                    while (nameEnd < end && !Character.isWhitespace(text.charAt(nameEnd))
+                            && text.charAt(nameEnd) != '/' && text.charAt(nameEnd) != '>') {
+                        nameEnd++;
+                    }
+                    var element = new PomElement(text.substring(i + 1, nameEnd), current, Math.min(end + 1, text.length()));
+                    current.children.add(element);
+                    if (text.charAt(end - 1) != '/') {
+                        current = element;
+                    }
+                    i = end + 1;
+                }
+            }
+            return document;
+        }
+
+        private static int skipPast(String text, int from, String terminator) {
+            int end = text.indexOf(terminator, from);
+            return end < 0 ? text.length() : end + terminator.length();
+        }
+
+        private static int tagEnd(String text, int from) {
+            char quote = 0;
+            for (int i = from; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    return i;
+                }
+            }
+            return text.length() - 1;
+        }
+
+        String text(PomElement element) {
+            return element == null ? null : text.substring(element.contentStart, element.contentEnd).trim();
+        }
+
+        String text(PomElement element, String childName) {
+            return element == null ? null : text(element.child(childName));
+        }
+
+        String groupId() {
+            var groupId = text(project, "groupId");
+            return groupId != null ? groupId : text(project.child("parent"), "groupId");
+        }
+
+        String artifactId() {
+            return text(project, "artifactId");
+        }
+
+        String version() {
+            var version = text(project, "version");
+            return version != null ? version : text(project.child("parent"), "version");
+        }
+
+        /**
+         * Resolves ${project.*} and ${pom.*} coordinates and properties of this pom in the value,
+         * expressions which can't be resolved from this pom are kept.
+         * @param value text of an element, can be null
+         */
+        String interpolate(String value) {
+            if (value == null || !value.contains("${")) {
+                return value;
+            }
+            return EXPRESSION_PATTERN.matcher(value).replaceAll(expression -> {
+                var resolved = resolve(expression.group(1));
+                return Matcher.quoteReplacement(resolved != null ? resolved : expression.group());
+            });
+        }
+
+        private String resolve(String expression) {
+            var name = expression.replaceFirst("^(project|pom)\\.", "");
+            if (!name.equals(expression)) {
+                var parent = project.child("parent");
+                switch (name) {
+                    case "groupId" -> { return groupId(); }
+                    case "artifactId" -> { return artifactId(); }
+                    case "version" -> { return version(); }
+                    case "parent.groupId" -> { return text(parent, "groupId"); }
+                    case "parent.artifactId" -> { return text(parent, "artifactId"); }
+                    case "parent.version" -> { return text(parent, "version"); }
+                    default -> { }
+                }
+            }
+            return text(project.child("properties"), expression);
+        }
+
+        /**
+         * Paths of the modules declared in this pom, including modules declared in profiles.
+         */
+        List<String> modules() {
+            var modules = new ArrayList<String>();
+            var containers = new ArrayList<PomElement>();
+            containers.add(project);
+            var profiles = project.child("profiles");
+            if (profiles != null) {
+                containers.addAll(profiles.children);
+            }
+            for (var container : containers) {
+                var modulesElement = container.child("modules");
+                if (modulesElement != null) {
+                    for (var module : modulesElement.children) {
+                        if (module.name.equals("module")) {
+                            modules.add(text(module));
+                        }
+                    }
+                }
+            }
+            return modules;
+        }
+
+        /**
+         * Returns the pom text with the content of given elements replaced by their new values.
+         */
+        String replace(Map<PomElement, String> values) {
+            var result = new StringBuilder(text);
+            values.keySet().stream()
+                    .sorted(Comparator.comparingInt((PomElement e) -> e.contentStart).reversed())
+                    .forEach(e -> {
+                        var content = text.substring(e.contentStart, e.contentEnd);
+                        int start = e.contentStart + content.indexOf(content.trim());
+                        result.replace(start, start + content.trim().length(), values.get(e));
+                    });
+            return result.toString();
+        }
+    }
+
+    /**
+     * All pom files reachable from the root pom.xml through modules.
+     * It's used for the in-process version update which replaces versions:set and versions:commit.
+     */
+    private static class PomReactor {
+        final List<PomFile> poms = new ArrayList<>();
+
+        static PomReactor load(File rootPom) throws IOException {
+            var reactor = new PomReactor();
+            var visited = new HashSet<Path>();
+            var queue = new ArrayDeque<File>();
+            queue.add(rootPom);
+            while (!queue.isEmpty()) {
+                var file = queue.poll();
+                if (!visited.add(file.toPath().toAbsolutePath().normalize())) {
+                    continue;
+                }
+                if (!file.isFile()) {
+                    printWarning("Module pom file not found: " + file.getPath(), null);
+                    continue;
+                }
+                var pom = PomFile.read(file);
+                reactor.poms.add(pom);
+                for (var module : pom.modules()) {
+                    var moduleFile = new File(file.getParentFile(), module);
+                    queue.add(moduleFile.isDirectory() ? new File(moduleFile, "pom.xml") : moduleFile);
+                }
+            }
+            return reactor;
+        }
+
+        /**
+         * Sets the new version to all modules sharing the root project version. Parent versions and versions
+         * of dependencies, plugins and extensions pointing to those modules are updated as well.
+         * @param newVersion
+         * @return list of files which were changed
+         */
+        List<File> updateVersion(String newVersion) throws IOException {
+            return updateVersion(newVersion, Map.of());
+        }
+
+        /**
+         * Sets the new version like {@link #updateVersion(String)} and updates SNAPSHOT references to other projects.
+         * @param newVersion new project version, null to keep it
+         * @param dependencyVersions new versions of artifacts of other projects by groupId:artifactId
+         * @return list of files which were changed
+         */
+        List<File> updateVersion(String newVersion, Map<String, String> dependencyVersions) throws IOException {
+            var changes = planVersionUpdate(newVersion, dependencyVersions);
+            // write only when all files were processed
+            var changedFiles = new ArrayList<File>();
+            for (var change : changes.entrySet()) {
+                var pom = change.getKey();
+                Files.write(pom.file.toPath(), change.getValue().getBytes(pom.charset));
+                changedFiles.add(pom.file);
+            }
+            return changedFiles;
+        }
+
+        /**
+         * Computes the version update without writing anything, see {@link #updateVersion(String)}.
+         * @param newVersion
+         * @return new content of changed pom files
+         */
+        Map<PomFile, String> planVersionUpdate(String newVersion) {
+            return planVersionUpdate(newVersion, Map.of());
+        }
+
+        /**
+         * Computes the version update without writing anything, see {@link #updateVersion(String, Map)}.
+         * References to other projects are updated only when they point to a SNAPSHOT version,
+         * either directly or through a property of the same pom.
+         * @param newVersion new project version, null to keep it
+         * @param dependencyVersions new versions of artifacts of other projects by groupId:artifactId
+         * @return new content of changed pom files
+         */
+        Map<PomFile, String> planVersionUpdate(String newVersion, Map<String, String> dependencyVersions) {
+            var oldVersion = poms.get(0).version();
+            var moduleVersions = new HashMap<String, String>();
+            if (newVersion != null) {
+                if (oldVersion == null || oldVersion.contains("${")) {
+                    throw new IllegalStateException("project version '" + oldVersion + "' can't be updated by the built-in engine");
+                }
+                for (var pom : poms) {
+                    if (oldVersion.equals(pom.version())) {
+                        moduleVersions.put(pom.groupId() + ":" + pom.artifactId(), newVersion);
+                    }
+                }
+            }
+            var changes = new LinkedHashMap<PomFile, String>();
+            for (var pom : poms) {
+                var versions = new LinkedHashMap<PomElement, String>();
+                var projectVersion = pom.project.child("version");
+                if (newVersion != null && oldVersion.equals(pom.text(projectVersion))) {
+                    versions.put(projectVersion, newVersion);
+                }
+                if (newVersion != null && projectVersion == null && oldVersion.equals(pom.version())
+                        && !moduleVersions.containsKey(coordinates(pom, pom.project.child("parent")))) {
+                    // the version is inherited from a parent outside of the reactor, which isn't released
+                    throw new IllegalStateException(pom.file.getPath() + " inherits version " + oldVersion
+                            + " from a parent outside of the project, it can't be updated by the built-in engine");
+                }
+                for (var element : pom.project.children) {
+                    collectVersions(pom, element, moduleVersions, oldVersion, versions);
+                    collectDependencyVersions(pom, element, dependencyVersions, versions);
+                }
+                if (!versions.isEmpty()) {
+                    changes.put(pom, pom.replace(versions));
+                }
+            }
+            return changes;
+        }
+
+        private static void collectVersions(PomFile pom, PomElement element, Map<String, String> modules, String oldVersion,
+                                            Map<PomElement, String> versions) {
+            var coordinates = coordinates(pom, element);
+            if (coordinates != null) {
+                var version = element.child("version");
+                if (version != null && oldVersion.equals(pom.text(version))) {
+                    if (coordinates.contains("${")) {
+                        // it may point to a module, maven resolves it
+                        throw new IllegalStateException("coordinates " + coordinates + " in " + pom.file.getPath()
+                                + " can't be resolved by the built-in engine");
+                    }
+                    if (modules.containsKey(coordinates)) {
+                        versions.put(version, modules.get(coordinates));
+                    }
+                }
+            }
+            for (var child : element.children) {
+                collectVersions(pom, child, modules, oldVersion, versions);
+            }
+        }
+
+        private static void collectDependencyVersions(PomFile pom, PomElement element, Map<String, String> dependencyVersions,
+                                                      Map<PomElement, String> versions) {
+            var coordinates = coordinates(pom, element);
+            if (coordinates != null && dependencyVersions.containsKey(coordinates) && element.child("version") != null) {
+                var version = element.child("version");
+                var text = pom.text(version);
+                if (text.startsWith("${") && text.endsWith("}")) {
+                    // version defined by a property of this pom
+                    version = pom.project.child("properties") != null
+                            ? pom.project.child("properties").child(text.substring(2, text.length() - 1))
+                            : null;
+                    text = pom.text(version);
+                }
+                if (text != null && text.endsWith("-SNAPSHOT")) {
+                    versions.put(version, dependencyVersions.get(coordinates));
+                }
+            }
+            for (var child : element.children) {
+                collectDependencyVersions(pom, child, dependencyVersions, versions);
+            }
+        }
+
+        /**
+         * @return groupId:artifactId of parent, dependency, plugin or extension element, null for other elements,
+         * expressions are resolved by {@link PomFile#interpolate(String)}
+         */
+        private static String coordinates(PomFile pom, PomElement element) {
+            switch (element.name) {
+                case "parent", "dependency", "plugin", "extension" -> {
+                    var groupId = pom.interpolate(pom.text(element, "groupId"));
+                    if (groupId == null && element.name.equals("plugin")) {
+                        groupId = "org.apache.maven.plugins";
+                    }
+                    return groupId + ":" + pom.interpolate(pom.text(element, "artifactId"));
+                }
+                default -> {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * @return groupId:artifactId of all modules
+         */
+        Set<String> artifacts() {
+            var artifacts = new LinkedHashSet<String>();
+            poms.forEach(pom -> artifacts.add(pom.groupId() + ":" + pom.artifactId()));
+            return artifacts;
+        }
+
+        /**
+         * @return groupId:artifactId of all parents, dependencies, plugins and extensions referenced by the modules
+         */
+        Set<String> references() {
+            var references = new LinkedHashSet<String>();
+            for (var pom : poms) {
+                collectReferences(pom, pom.project, references);
+            }
+            return references;
+        }
+
+        private static void collectReferences(PomFile pom, PomElement element, Set<String> references) {
+            for (var child : element.children) {
+                var coordinates = coordinates(pom, child);
+                if (coordinates != null) {
+                    references.add(coordinates);
+                }
+                collectReferences(pom, child, references);
             }
         }
     }
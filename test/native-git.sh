@@ -0,0 +1,104 @@
+#!/bin/bash
+# Round-trip check of the native git writer (--native-git): commits, branches and tags created without git
+# must pass git fsck --strict and leave a clean working tree, also when objects are packed.
+# Usage: test/native-git.sh (needs java 17+ and git on PATH)
+set -euo pipefail
+
+SCRIPT="$(cd "$(dirname "$0")/.." && pwd)/mvnrelease.java"
+WORK="$(mktemp -d)"
+trap 'rm -rf "$WORK"' EXIT
+javac -d "$WORK/classes" "$SCRIPT"
+
+FAILURES=0
+fail() {
+    echo "FAIL: $*"
+    FAILURES=$((FAILURES + 1))
+}
+
+# creates a two-module project in $1 with develop branch checked out
+create_repository() {
+    mkdir -p "$1/core"
+    cat > "$1/pom.xml" <<'POM'
+<?xml version="1.0" encoding="UTF-8"?>
+<project>
+    <modelVersion>4.0.0</modelVersion>
+    <groupId>com.example</groupId>
+    <artifactId>parent</artifactId>
+    <version>1.0.0-SNAPSHOT</version>
+    <packaging>pom</packaging>
+    <modules>
+        <module>core</module>
+    </modules>
+</project>
+POM
+    cat > "$1/core/pom.xml" <<'POM'
+<?xml version="1.0" encoding="UTF-8"?>
+<project>
+    <modelVersion>4.0.0</modelVersion>
+    <parent>
+        <groupId>com.example</groupId>
+        <artifactId>parent</artifactId>
+        <version>1.0.0-SNAPSHOT</version>
+    </parent>
+    <artifactId>core</artifactId>
+</project>
+POM
+    git -C "$1" init -q -b develop
+    git -C "$1" config user.name Tester
+    git -C "$1" config user.email tester@example.com
+    git -C "$1" add -A
+    git -C "$1" commit -qm init
+}
+
+# runs the operation with the native writer and checks the repository afterwards
+check() {
+    local repository=$1 description=$2
+    shift 2
+    if ! (cd "$repository" && java -cp "$WORK/classes" cz.foghcz.mvnrelease.mvnrelease "$@" --native-git > "$WORK/output.txt" 2>&1); then
+        cat "$WORK/output.txt"
+        fail "$description: operation failed"
+        return
+    fi
+    git -C "$repository" fsck --strict --no-progress > "$WORK/fsck.txt" 2>&1 || { cat "$WORK/fsck.txt"; fail "$description: git fsck --strict"; }
+    local status
+    status="$(git -C "$repository" status --porcelain)"
+    [ -z "$status" ] || { echo "$status"; fail "$description: working tree is not clean"; }
+    echo "ok: $description"
+}
+
+REPO="$WORK/loose"
+create_repository "$REPO"
+check "$REPO" "release from loose objects" release 1.0.0
+[ "$(git -C "$REPO" rev-parse --abbrev-ref HEAD)" = "release/1.0" ] || fail "release branch is not checked out"
+[ "$(git -C "$REPO" rev-parse v1.0.0^{commit})" = "$(git -C "$REPO" rev-parse HEAD)" ] || fail "tag doesn't point to the release commit"
+grep -q "<version>1.0.0</version>" <(git -C "$REPO" show HEAD:core/pom.xml) || fail "core/pom.xml is not committed"
+check "$REPO" "bugfix" bugfix 1.0.1
+git -C "$REPO" checkout -q develop
+check "$REPO" "dev" dev 1.1.0-SNAPSHOT
+[ "$(git -C "$REPO" rev-list --count develop)" = "2" ] || fail "develop wasn't advanced by one commit"
+
+REPO="$WORK/packed"
+create_repository "$REPO"
+git -C "$REPO" gc -q
+check "$REPO" "dev from packed objects" dev 1.1.0-SNAPSHOT
+
+REPO="$WORK/autocrlf"
+create_repository "$REPO"
+git -C "$REPO" config core.autocrlf true
+check "$REPO" "core.autocrlf falls back to git" dev 1.1.0-SNAPSHOT
+grep -q "git is used instead of the native writer" "$WORK/output.txt" || fail "no fallback warning for core.autocrlf"
+
+REPO="$WORK/include"
+create_repository "$REPO"
+git -C "$REPO" config --unset user.name
+git -C "$REPO" config --unset user.email
+printf '[user]\n\tname = Included\n\temail = included@example.com\n' > "$WORK/identity.inc"
+git -C "$REPO" config include.path "$WORK/identity.inc"
+check "$REPO" "identity from include.path" dev 1.1.0-SNAPSHOT
+[ "$(git -C "$REPO" log -1 --format=%ae)" = "included@example.com" ] || fail "included identity wasn't used"
+
+if [ $FAILURES -gt 0 ]; then
+    echo "$FAILURES check(s) failed"
+    exit 1
+fi
+echo "all checks passed"